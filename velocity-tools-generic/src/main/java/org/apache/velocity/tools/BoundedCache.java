@@ -0,0 +1,170 @@
+package org.apache.velocity.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Simple thread-safe cache, bounded in size (the least recently
+ * used entries are evicted first) and optionally in time (entries
+ * older than the time to live are ignored and evicted).</p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class BoundedCache<K,V>
+{
+    private final int maxSize;
+    private final long timeToLive;
+    private final Map<K,CacheEntry<V>> entries;
+
+    /**
+     * Creates a cache whose entries never expire.
+     *
+     * @param maxSize maximum number of entries
+     */
+    public BoundedCache(int maxSize)
+    {
+        this(maxSize, 0);
+    }
+
+    /**
+     * Creates a cache whose entries expire after the specified time.
+     *
+     * @param maxSize maximum number of entries
+     * @param timeToLive time to live of entries in milliseconds,
+     *        or zero for no expiration
+     */
+    public BoundedCache(final int maxSize, long timeToLive)
+    {
+        if (maxSize < 1)
+        {
+            throw new IllegalArgumentException("cache size must be positive");
+        }
+        this.maxSize = maxSize;
+        this.timeToLive = Math.max(0, timeToLive);
+        this.entries = new LinkedHashMap<K,CacheEntry<V>>(Math.min(maxSize, 256), 0.75f, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<K,CacheEntry<V>> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return maximum number of entries
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return time to live of entries in milliseconds, zero meaning no expiration
+     */
+    public long getTimeToLive()
+    {
+        return timeToLive;
+    }
+
+    /**
+     * Gets a cached value.
+     *
+     * @param key entry key
+     * @return cached value, or <code>null</code> if not found or expired
+     */
+    public synchronized V get(K key)
+    {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry == null)
+        {
+            return null;
+        }
+        if (entry.isExpired())
+        {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Caches a value.
+     *
+     * @param key entry key
+     * @param value value to cache
+     * @return previously cached value, if any
+     */
+    public synchronized V put(K key, V value)
+    {
+        long expiration = timeToLive == 0 ? 0 : System.currentTimeMillis() + timeToLive;
+        CacheEntry<V> previous = entries.put(key, new CacheEntry<V>(value, expiration));
+        return previous == null ? null : previous.value;
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @param key entry key
+     * @return removed value, if any
+     */
+    public synchronized V remove(K key)
+    {
+        CacheEntry<V> previous = entries.remove(key);
+        return previous == null ? null : previous.value;
+    }
+
+    /**
+     * Removes all values.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * @return the current number of entries (some of which may be expired)
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    private static class CacheEntry<V>
+    {
+        private final V value;
+        private final long expiration;
+
+        private CacheEntry(V value, long expiration)
+        {
+            this.value = value;
+            this.expiration = expiration;
+        }
+
+        private boolean isExpired()
+        {
+            return expiration != 0 && System.currentTimeMillis() > expiration;
+        }
+    }
+}
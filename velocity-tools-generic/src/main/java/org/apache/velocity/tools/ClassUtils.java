@@ -19,6 +19,9 @@ package org.apache.velocity.tools;
  * under the License.
  */
 
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
 import java.io.InputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
@@ -31,11 +34,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.velocity.util.ArrayIterator;
 import org.apache.velocity.util.EnumerationIterator;
 
@@ -340,6 +345,82 @@ public class ClassUtils
         return field.get(null);
     }
 
+    /**
+     * Reads a property of a bean. Simple properties of Java beans
+     * and maps are read using accessors cached per class, other properties
+     * (nested, indexed or mapped ones) are resolved by commons-beanutils.
+     *
+     * @param bean the bean
+     * @param field the property name
+     * @return the property value
+     * @throws Exception if the property cannot be read
+     * @since VelocityTools 3.0
+     */
+    public static Object getProperty(Object bean, String field) throws Exception
+    {
+        if (bean != null && isSimpleProperty(field))
+        {
+            if (bean instanceof Map)
+            {
+                return ((Map)bean).get(field);
+            }
+            Method getter = getReadMethods(bean.getClass()).get(field);
+            if (getter != null)
+            {
+                return getter.invoke(bean);
+            }
+        }
+        return PropertyUtils.getProperty(bean, field);
+    }
+
+    private static boolean isSimpleProperty(String field)
+    {
+        for (int i = 0; i < field.length(); ++i)
+        {
+            char c = field.charAt(i);
+            if (c == '.' || c == '[' || c == '(')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* read methods of Java beans public properties, per class ; a ClassValue
+     * keeps them along with the class, so that class loaders are not pinned */
+    private static final ClassValue<Map<String,Method>> readMethods = new ClassValue<Map<String,Method>>()
+    {
+        @Override
+        protected Map<String,Method> computeValue(Class<?> clazz)
+        {
+            Map<String,Method> methods = new HashMap<String,Method>();
+            try
+            {
+                for (PropertyDescriptor descriptor : Introspector.getBeanInfo(clazz).getPropertyDescriptors())
+                {
+                    Method getter = descriptor.getReadMethod();
+                    /* leave getters declared by non-public classes to beanutils, which
+                     * knows how to find an accessible method */
+                    if (getter != null && Modifier.isPublic(getter.getModifiers()) &&
+                        Modifier.isPublic(getter.getDeclaringClass().getModifiers()))
+                    {
+                        methods.put(descriptor.getName(), getter);
+                    }
+                }
+            }
+            catch (IntrospectionException ie)
+            {
+                /* let beanutils report it */
+            }
+            return methods;
+        }
+    };
+
+    private static Map<String,Method> getReadMethods(Class clazz)
+    {
+        return readMethods.get(clazz);
+    }
+
     /**
      * Retrieves an Iterator from or creates and Iterator for the specified object.
      * This method is almost entirely copied from Engine's UberspectImpl class.
@@ -28,6 +28,8 @@ import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.FieldPosition;
+import java.text.Format;
+import java.text.MessageFormat;
 import java.text.NumberFormat;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
@@ -35,11 +37,10 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility methods for parsing or otherwise converting between types.
@@ -62,8 +63,78 @@ public class ConversionUtils
     //NOTE: '3' belongs to a non-public "scientific" style
     private static final int STYLE_INTEGER      = 4;
 
-    // cache custom formats
-    private static ConcurrentMap<String,NumberFormat> customFormatsCache = new ConcurrentHashMap<String,NumberFormat>();
+    /**
+     * Thread-confined least-recently-used cache of formats,
+     * keyed by pattern or style, locale and time zone.
+     */
+    private static class FormatCache<F extends Format> extends LinkedHashMap<String,F>
+    {
+        private static final long serialVersionUID = -2650713594358251317L;
+
+        private final int maxSize;
+
+        private FormatCache(int maxSize)
+        {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        private static String key(String format, Locale locale, TimeZone timezone)
+        {
+            StringBuilder key = new StringBuilder(format.length() + 32);
+            key.append(format).append('|').append(locale).append('|');
+            if (timezone != null)
+            {
+                key.append(timezone.getID());
+            }
+            return key.toString();
+        }
+
+        private void cache(String key, F format)
+        {
+            if (format != null && maxSize > 0)
+            {
+                put(key, format);
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,F> eldest)
+        {
+            return size() > maxSize;
+        }
+    }
+
+    private static int maxNumberFormatCacheSize = 64;
+    private static final String NUMBER_FORMAT_CACHE_SIZE_KEY = "velocity.tools.numberformat.cache.size";
+
+    static
+    {
+        try
+        {
+            String configuredSize = System.getProperty(NUMBER_FORMAT_CACHE_SIZE_KEY);
+            if (configuredSize != null)
+            {
+                maxNumberFormatCacheSize = Integer.parseInt(configuredSize);
+            }
+        }
+        catch(Exception e)
+        {
+            LoggerFactory.getLogger(ConversionUtils.class).error("could not configure number formats cache size", e);
+        }
+    }
+
+    /**
+     * Per-thread number formats, since NumberFormat instances are not thread-safe.
+     */
+    private static final ThreadLocal<FormatCache<NumberFormat>> numberFormatCache = new ThreadLocal<FormatCache<NumberFormat>>()
+    {
+        @Override
+        protected FormatCache<NumberFormat> initialValue()
+        {
+            return new FormatCache<NumberFormat>(maxNumberFormatCacheSize);
+        }
+    };
 
     private ConversionUtils() {}
 
@@ -98,13 +169,7 @@ public class ConversionUtils
         if (style < 0)
         {
             // we have a custom format
-            String cacheKey = format + "%" + locale.toString();
-            nf = customFormatsCache.get(cacheKey);
-            if( nf == null )
-            {
-                nf = new DecimalFormat(format, new DecimalFormatSymbols(locale));
-                customFormatsCache.put(cacheKey,nf);
-            }
+            nf = new DecimalFormat(format, new DecimalFormatSymbols(locale));
         }
         else
         {
@@ -114,6 +179,38 @@ public class ConversionUtils
         return nf;
     }
 
+    /**
+     * Returns a cached {@link NumberFormat} instance for the specified
+     * format and {@link Locale}, as per {@link #getNumberFormat(String, Locale)}.
+     * The returned instance belongs to the calling thread and is reused by
+     * subsequent calls with the same arguments: it must neither be modified
+     * nor shared with other threads. The per-thread cache size can be set
+     * using the <code>velocity.tools.numberformat.cache.size</code> system property.
+     *
+     * @param format the custom or standard formatting pattern to be used
+     * @param locale the {@link Locale} to be used
+     * @return a thread-confined instance of {@link NumberFormat}
+     * @since VelocityTools 3.0
+     */
+    public static NumberFormat getCachedNumberFormat(String format, Locale locale)
+    {
+        if (format == null || locale == null)
+        {
+            return null;
+        }
+        int style = getNumberStyleAsInt(format);
+        FormatCache<NumberFormat> cache = numberFormatCache.get();
+        /* styles keys are prefixed with '#' and patterns keys with '=', so that they cannot clash */
+        String key = FormatCache.key(style < 0 ? "=" + format : "#" + style, locale, null);
+        NumberFormat nf = cache.get(key);
+        if (nf == null)
+        {
+            nf = style < 0 ? getNumberFormat(format, locale) : getNumberFormat(style, locale);
+            cache.cache(key, nf);
+        }
+        return nf;
+    }
+
     /**
      * Returns a {@link NumberFormat} instance for the specified
      * number style and {@link Locale}.
@@ -268,9 +365,17 @@ public class ConversionUtils
         {
             return null;
         }
+        if (getNumberStyleAsInt(format) == STYLE_NUMBER && isPlainNumberLocale(locale))
+        {
+            Number number = parsePlainNumber(value);
+            if (number != null)
+            {
+                return number;
+            }
+        }
         try
         {
-            NumberFormat parser = getNumberFormat(format, locale);
+            NumberFormat parser = getCachedNumberFormat(format, locale);
             return parser.parse(value);
         }
         catch (Exception e)
@@ -279,6 +384,131 @@ public class ConversionUtils
         }
     }
 
+    /**
+     * Last locale checked by {@link #isPlainNumberLocale(Locale)}, along with the result.
+     */
+    private static class PlainNumberLocale
+    {
+        private final Locale locale;
+        private final boolean plain;
+
+        private PlainNumberLocale(Locale locale, boolean plain)
+        {
+            this.locale = locale;
+            this.plain = plain;
+        }
+    }
+
+    private static volatile PlainNumberLocale lastPlainNumberLocale = new PlainNumberLocale(null, false);
+
+    /**
+     * Checks whether the number instance for this locale parses plain ASCII
+     * decimal literals (like <code>-12.5</code>) the same way as
+     * {@link #parsePlainNumber(String)} does.
+     * @param locale the {@link Locale}
+     * @return whether the fast path can be used for this locale
+     */
+    private static boolean isPlainNumberLocale(Locale locale)
+    {
+        PlainNumberLocale last = lastPlainNumberLocale;
+        if (!locale.equals(last.locale))
+        {
+            boolean plain = false;
+            NumberFormat nf = getNumberFormat(STYLE_NUMBER, locale);
+            if (nf instanceof DecimalFormat)
+            {
+                DecimalFormat df = (DecimalFormat)nf;
+                DecimalFormatSymbols symbols = df.getDecimalFormatSymbols();
+                plain = symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0' &&
+                    "-".equals(df.getNegativePrefix()) && df.getNegativeSuffix().length() == 0 &&
+                    df.getPositivePrefix().length() == 0 && df.getPositiveSuffix().length() == 0 &&
+                    df.getMultiplier() == 1 && !df.isParseBigDecimal() && !df.isParseIntegerOnly();
+            }
+            last = new PlainNumberLocale(locale, plain);
+            lastPlainNumberLocale = last;
+        }
+        return last.plain;
+    }
+
+    /**
+     * Parses plain ASCII integer and decimal literals, like <code>42</code>
+     * or <code>-3.5</code>, without going through {@link NumberFormat}. The
+     * result is the one {@link DecimalFormat#parse(String)} would give: a
+     * {@link Long} for integral values which fit in a long (except for
+     * negative zero), a {@link Double} otherwise.
+     * @param value the string to parse
+     * @return the parsed number, or <code>null</code> if the string is not
+     *         a plain literal
+     */
+    private static Number parsePlainNumber(String value)
+    {
+        int len = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (len > 0 && value.charAt(0) == '-')
+        {
+            negative = true;
+            ++i;
+        }
+        int start = i;
+        /* accumulate negatively, to be able to reach Long.MIN_VALUE */
+        long result = 0;
+        boolean overflow = false;
+        char c;
+        while (i < len && (c = value.charAt(i)) >= '0' && c <= '9')
+        {
+            int digit = c - '0';
+            if (result < (Long.MIN_VALUE + digit) / 10)
+            {
+                overflow = true;
+            }
+            result = result * 10 - digit;
+            ++i;
+        }
+        if (i == start)
+        {
+            return null;
+        }
+        boolean integral = true;
+        if (i < len)
+        {
+            if (value.charAt(i) != '.' || ++i == len)
+            {
+                return null;
+            }
+            while (i < len && (c = value.charAt(i)) >= '0' && c <= '9')
+            {
+                if (c != '0')
+                {
+                    integral = false;
+                }
+                ++i;
+            }
+            if (i < len)
+            {
+                return null;
+            }
+        }
+        if (!integral || overflow)
+        {
+            return Double.valueOf(Double.parseDouble(value));
+        }
+        if (negative)
+        {
+            if (result == 0)
+            {
+                /* DecimalFormat does not return negative zero as a Long */
+                return Double.valueOf(-0.0d);
+            }
+            return Long.valueOf(result);
+        }
+        if (result == Long.MIN_VALUE)
+        {
+            return Double.valueOf(Double.parseDouble(value));
+        }
+        return Long.valueOf(-result);
+    }
+
     /**
      * Converts an object to an instance of {@link Number} using the
      * specified format and {@link Locale} to parse it, if necessary.
@@ -511,7 +741,7 @@ public class ConversionUtils
                 switch (dateStyle)
                 {
                     case STYLE_ISO:
-                        df = isoTimestampFormat;
+                        df = (DateFormat)isoTimestampFormat.clone();
                         break;
                     case STYLE_ISO_TZ:
                         df = (DateFormat)isoTimestampTzFormat.clone();
@@ -538,6 +768,102 @@ public class ConversionUtils
         }
     }
 
+    private static int maxDateFormatCacheSize = 64;
+    private static final String DATE_FORMAT_CACHE_SIZE_KEY = "velocity.tools.dateformat.cache.size";
+
+    static
+    {
+        try
+        {
+            String configuredSize = System.getProperty(DATE_FORMAT_CACHE_SIZE_KEY);
+            if (configuredSize != null)
+            {
+                maxDateFormatCacheSize = Integer.parseInt(configuredSize);
+            }
+        }
+        catch(Exception e)
+        {
+            LoggerFactory.getLogger(ConversionUtils.class).error("could not configure date formats cache size", e);
+        }
+    }
+
+    /**
+     * Per-thread date formats, since DateFormat instances are not thread-safe.
+     */
+    private static final ThreadLocal<FormatCache<DateFormat>> dateFormatCache = new ThreadLocal<FormatCache<DateFormat>>()
+    {
+        @Override
+        protected FormatCache<DateFormat> initialValue()
+        {
+            return new FormatCache<DateFormat>(maxDateFormatCacheSize);
+        }
+    };
+
+    /**
+     * Returns a cached {@link DateFormat} instance for the specified
+     * format, {@link Locale}, and {@link TimeZone}, as per
+     * {@link #getDateFormat(String, Locale, TimeZone)}.
+     * The returned instance belongs to the calling thread and is reused by
+     * subsequent calls with the same arguments: it must neither be modified
+     * nor shared with other threads. The per-thread cache size can be set
+     * using the <code>velocity.tools.dateformat.cache.size</code> system property.
+     *
+     * @param format the custom or standard formatting pattern to be used
+     * @param locale the {@link Locale} to be used
+     * @param timezone the {@link TimeZone} to be used
+     * @return a thread-confined instance of {@link DateFormat}
+     * @since VelocityTools 3.0
+     */
+    public static DateFormat getCachedDateFormat(String format, Locale locale,
+                                                 TimeZone timezone)
+    {
+        if (format == null)
+        {
+            return null;
+        }
+        FormatCache<DateFormat> cache = dateFormatCache.get();
+        String key = FormatCache.key("=" + format, locale, timezone);
+        DateFormat df = cache.get(key);
+        if (df == null)
+        {
+            df = getDateFormat(format, locale, timezone);
+            cache.cache(key, df);
+        }
+        return df;
+    }
+
+    /**
+     * Returns a cached {@link DateFormat} instance for the specified
+     * date style, time style, {@link Locale}, and {@link TimeZone}, as per
+     * {@link #getDateFormat(String, String, Locale, TimeZone)}.
+     * The returned instance belongs to the calling thread and is reused by
+     * subsequent calls with the same arguments: it must neither be modified
+     * nor shared with other threads.
+     *
+     * @param dateStyle the date style
+     * @param timeStyle the time style
+     * @param locale the {@link Locale} to be used
+     * @param timezone the {@link TimeZone} to be used
+     * @return a thread-confined instance of {@link DateFormat}
+     * @since VelocityTools 3.0
+     */
+    public static DateFormat getCachedDateFormat(String dateStyle, String timeStyle,
+                                                 Locale locale, TimeZone timezone)
+    {
+        int ds = getDateStyleAsInt(dateStyle);
+        int ts = getDateStyleAsInt(timeStyle);
+        FormatCache<DateFormat> cache = dateFormatCache.get();
+        /* styles keys are prefixed with '#' and patterns keys with '=', so that they cannot clash */
+        String key = FormatCache.key("#" + ds + "/" + ts, locale, timezone);
+        DateFormat df = cache.get(key);
+        if (df == null)
+        {
+            df = getDateFormat(ds, ts, locale, timezone);
+            cache.cache(key, df);
+        }
+        return df;
+    }
+
     static Map<String, Integer> stylesMap;
     static
     {
@@ -651,7 +977,7 @@ public class ConversionUtils
         try
         {
             //try parsing w/a customized SimpleDateFormat
-            DateFormat parser = getDateFormat(format, locale, timezone);
+            DateFormat parser = getCachedDateFormat(format, locale, timezone);
             return parser.parse(str);
         }
         catch (Exception e)
@@ -684,6 +1010,83 @@ public class ConversionUtils
     }
 
 
+    // ----------------- message formatting methods ---------------
+
+    private static int maxMessageFormatCacheSize = 256;
+    private static final String MESSAGE_FORMAT_CACHE_SIZE_KEY = "velocity.tools.messageformat.cache.size";
+
+    static
+    {
+        try
+        {
+            String configuredSize = System.getProperty(MESSAGE_FORMAT_CACHE_SIZE_KEY);
+            if (configuredSize != null)
+            {
+                maxMessageFormatCacheSize = Integer.parseInt(configuredSize);
+            }
+        }
+        catch(Exception e)
+        {
+            LoggerFactory.getLogger(ConversionUtils.class).error("could not configure message formats cache size", e);
+        }
+    }
+
+    /**
+     * Per-thread compiled message formats, since MessageFormat instances are not thread-safe.
+     */
+    private static final ThreadLocal<FormatCache<MessageFormat>> messageFormatCache = new ThreadLocal<FormatCache<MessageFormat>>()
+    {
+        @Override
+        protected FormatCache<MessageFormat> initialValue()
+        {
+            return new FormatCache<MessageFormat>(maxMessageFormatCacheSize);
+        }
+    };
+
+    /**
+     * Returns a cached {@link MessageFormat} instance for the specified
+     * pattern and {@link Locale}.
+     * The returned instance belongs to the calling thread and is reused by
+     * subsequent calls with the same arguments: it must neither be modified
+     * nor shared with other threads. The per-thread cache size can be set
+     * using the <code>velocity.tools.messageformat.cache.size</code> system property.
+     *
+     * @param pattern the message pattern
+     * @param locale the {@link Locale} to be used
+     * @return a thread-confined instance of {@link MessageFormat}
+     * @throws IllegalArgumentException if the pattern is invalid
+     * @since VelocityTools 3.0
+     */
+    public static MessageFormat getCachedMessageFormat(String pattern, Locale locale)
+    {
+        FormatCache<MessageFormat> cache = messageFormatCache.get();
+        String key = FormatCache.key(pattern, locale, null);
+        MessageFormat format = cache.get(key);
+        if (format == null)
+        {
+            format = new MessageFormat(pattern, locale);
+            cache.cache(key, format);
+        }
+        return format;
+    }
+
+    /**
+     * Formats a message like {@link MessageFormat#format(String, Object...)}
+     * does, but using a cached compiled pattern.
+     *
+     * @param pattern the message pattern
+     * @param args the message arguments
+     * @return the formatted message
+     * @throws IllegalArgumentException if the pattern is invalid or if
+     *         an argument cannot be formatted
+     * @since VelocityTools 3.0
+     */
+    public static String formatMessage(String pattern, Object... args)
+    {
+        return getCachedMessageFormat(pattern, Locale.getDefault(Locale.Category.FORMAT)).format(args);
+    }
+
+
     // ----------------- misc conversion methods ---------------
 
     /**
@@ -40,6 +40,13 @@ import org.slf4j.LoggerFactory;
  */
 public class ToolManager
 {
+    /**
+     * Global property of the tools configuration giving the auto-escaping rules,
+     * exposed to the engine as an application attribute of the same name.
+     * @see org.apache.velocity.tools.generic.AutoEscapeReference
+     */
+    public static final String AUTO_ESCAPE_RULES_KEY = "autoEscape";
+
     protected VelocityEngine velocity;
     protected ToolboxFactory factory;
     protected Logger log = null;
@@ -91,6 +98,20 @@ public class ToolManager
         // clear the cached application toolbox
         this.application = null;
         this.factory.configure(config);
+        exposeAutoEscapeRules();
+    }
+
+    /**
+     * Makes the auto-escaping rules found in the tools configuration, if any,
+     * available to the auto-escaping event handler of the engine.
+     */
+    protected void exposeAutoEscapeRules()
+    {
+        Object rules = factory.getGlobalProperty(AUTO_ESCAPE_RULES_KEY);
+        if (velocity != null && rules != null)
+        {
+            velocity.setApplicationAttribute(AUTO_ESCAPE_RULES_KEY, rules);
+        }
     }
 
     public void configure(String path)
@@ -148,6 +169,7 @@ public class ToolManager
         {
             getLog().debug("VelocityEngine instance was changed to {}", engine);
             this.velocity = engine;
+            exposeAutoEscapeRules();
         }
     }
 
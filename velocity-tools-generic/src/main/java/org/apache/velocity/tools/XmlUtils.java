@@ -22,6 +22,7 @@ import org.apache.velocity.runtime.RuntimeConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
@@ -35,13 +36,21 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -177,10 +186,12 @@ public final class XmlUtils
         }
     }
 
-    private static LinkedBlockingDeque<SoftReference<DocumentBuilder>> builderPool = new LinkedBlockingDeque<SoftReference<DocumentBuilder>>(); // contains only idle builders
+    /* idle builders, most recently released first */
+    private static final ConcurrentLinkedDeque<SoftReference<DocumentBuilder>> builderPool = new ConcurrentLinkedDeque<SoftReference<DocumentBuilder>>();
     private static int maxBuildersCount = 100;
-    private static int currentBuildersCount = 0;
+    private static long builderWaitTimeout = 30000;
     private static final String BUILDER_MAX_INSTANCES_KEY = "velocity.tools.xml.documentbuilder.max.instances";
+    private static final String BUILDER_WAIT_TIMEOUT_KEY = "velocity.tools.xml.documentbuilder.wait.timeout";
 
     static
     {
@@ -198,51 +209,260 @@ public final class XmlUtils
         {
             LOGGER.error("could not configure XML document builder max instances count", e);
         }
+        try
+        {
+            String configuredTimeout = System.getProperty(BUILDER_WAIT_TIMEOUT_KEY);
+            if (configuredTimeout != null)
+            {
+                builderWaitTimeout = Long.parseLong(configuredTimeout);
+            }
+        }
+        catch(Exception e)
+        {
+            LOGGER.error("could not configure XML document builder wait timeout", e);
+        }
+    }
+
+    /* one permit per builder which can be in use at the same time */
+    private static final Semaphore builderPermits = new Semaphore(Math.max(1, maxBuildersCount));
+
+    /* pool metrics */
+    private static final AtomicLong createdBuildersCount = new AtomicLong();
+    private static final AtomicLong builderWaitsCount = new AtomicLong();
+    private static final AtomicLong builderWaitTime = new AtomicLong();
+    private static final AtomicLong builderTimeoutsCount = new AtomicLong();
+
+    private static DocumentBuilder newDocumentBuilder()
+    {
+        try
+        {
+            DocumentBuilder builder = builderFactory.newDocumentBuilder();
+            builder.setErrorHandler(errorHandler);
+            createdBuildersCount.incrementAndGet();
+            return builder;
+        }
+        catch(Exception e)
+        {
+            /* this is a fatal error */
+            throw new RuntimeException("could not create a new XML DocumentBuilder instance", e);
+        }
     }
 
-    private static synchronized DocumentBuilder getDocumentBuilder()
+    /**
+     * Gets an idle builder from the pool, or creates a new one. When the maximum number of builders
+     * are in use, waits for one of them to be released, at most for the configured wait timeout.
+     * @return document builder, or null if none could be obtained
+     */
+    private static DocumentBuilder getDocumentBuilder()
     {
+        if (!canReuseBuilders)
+        {
+            return newDocumentBuilder();
+        }
+        if (!builderPermits.tryAcquire())
+        {
+            LOGGER.debug("reached XML DocumentBuilder pool size limit, current thread needs to wait; you can increase pool size with the {} system property", BUILDER_MAX_INSTANCES_KEY);
+            builderWaitsCount.incrementAndGet();
+            long start = System.nanoTime();
+            boolean acquired = false;
+            try
+            {
+                acquired = builderPermits.tryAcquire(builderWaitTimeout, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                LOGGER.warn("caught an InterruptedException while waiting for a DocumentBuilder instance");
+                return null;
+            }
+            finally
+            {
+                builderWaitTime.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            if (!acquired)
+            {
+                builderTimeoutsCount.incrementAndGet();
+                LOGGER.warn("timeout while waiting for an XML DocumentBuilder instance; you can increase pool size with the {} system property", BUILDER_MAX_INSTANCES_KEY);
+                return null;
+            }
+        }
         DocumentBuilder builder = null;
-        if (canReuseBuilders && builderPool.size() > 0)
+        SoftReference<DocumentBuilder> ref;
+        while (builder == null && (ref = builderPool.pollFirst()) != null)
         {
-            builder = builderPool.pollFirst().get();
+            builder = ref.get();
         }
         if (builder == null)
         {
-            if(!canReuseBuilders || currentBuildersCount < maxBuildersCount)
+            try
             {
-                try
-                {
-                    builder = builderFactory.newDocumentBuilder();
-                    builder.setErrorHandler(errorHandler);
-                    ++currentBuildersCount;
-                }
-                catch(Exception e)
-                {
-                    /* this is a fatal error */
-                    throw new RuntimeException("could not create a new XML DocumentBuilder instance", e);
-                }
+                builder = newDocumentBuilder();
             }
-            else
+            catch(RuntimeException re)
             {
-                try
-                {
-                    LOGGER.warn("reached XML DocumentBuilder pool size limit, current thread needs to wait; you can increase pool size with the {} system property", BUILDER_MAX_INSTANCES_KEY);
-                    builder = builderPool.takeFirst().get();
-                }
-                catch(InterruptedException ie)
+                builderPermits.release();
+                throw re;
+            }
+        }
+        return builder;
+    }
+
+    private static void releaseBuilder(DocumentBuilder builder)
+    {
+        if (!canReuseBuilders)
+        {
+            return;
+        }
+        try
+        {
+            builder.reset();
+            builderPool.addFirst(new SoftReference<DocumentBuilder>(builder));
+        }
+        finally
+        {
+            builderPermits.release();
+        }
+    }
+
+    /**
+     * @return number of XML DocumentBuilder instances currently in use
+     */
+    public static int getActiveBuildersCount()
+    {
+        return canReuseBuilders ? Math.max(1, maxBuildersCount) - builderPermits.availablePermits() : 0;
+    }
+
+    /**
+     * @return number of idle XML DocumentBuilder instances in the pool
+     * (some of which may have been reclaimed by the garbage collector)
+     */
+    public static int getIdleBuildersCount()
+    {
+        return builderPool.size();
+    }
+
+    /**
+     * @return total number of XML DocumentBuilder instances created
+     */
+    public static long getCreatedBuildersCount()
+    {
+        return createdBuildersCount.get();
+    }
+
+    /**
+     * @return number of times a thread had to wait for a DocumentBuilder instance
+     */
+    public static long getBuilderWaitsCount()
+    {
+        return builderWaitsCount.get();
+    }
+
+    /**
+     * @return total time spent by threads waiting for a DocumentBuilder instance, in milliseconds
+     */
+    public static long getBuilderWaitTime()
+    {
+        return builderWaitTime.get();
+    }
+
+    /**
+     * @return number of times a thread gave up waiting for a DocumentBuilder instance
+     */
+    public static long getBuilderTimeoutsCount()
+    {
+        return builderTimeoutsCount.get();
+    }
+
+    private static int maxXPathCacheSize = 256;
+    private static final String XPATH_CACHE_SIZE_KEY = "velocity.tools.xml.xpath.cache.size";
+
+    static
+    {
+        /* same as for the DocumentBuilder pool size */
+        try
+        {
+            String configuredSize = System.getProperty(XPATH_CACHE_SIZE_KEY);
+            if (configuredSize != null)
+            {
+                maxXPathCacheSize = Integer.parseInt(configuredSize);
+            }
+        }
+        catch(Exception e)
+        {
+            LOGGER.error("could not configure XPath expressions cache size", e);
+        }
+    }
+
+    /* XPathFactory.newInstance() involves a service lookup, so keep a single factory around;
+     * factories are not thread-safe, hence the synchronization when creating evaluators. */
+    private static final XPathFactory xpathFactory = XPathFactory.newInstance();
+
+    /**
+     * Per-thread XPath evaluator and compiled expressions, since neither
+     * XPath nor XPathExpression instances are thread-safe.
+     */
+    private static final ThreadLocal<XPathCache> xpathCache = new ThreadLocal<XPathCache>()
+    {
+        @Override
+        protected XPathCache initialValue()
+        {
+            XPath xpath;
+            synchronized (xpathFactory)
+            {
+                xpath = xpathFactory.newXPath();
+            }
+            return new XPathCache(xpath, maxXPathCacheSize);
+        }
+    };
+
+    /**
+     * Thread-confined least-recently-used cache of compiled XPath expressions.
+     */
+    private static class XPathCache extends LinkedHashMap<String,XPathExpression>
+    {
+        private static final long serialVersionUID = 4306522734735214913L;
+
+        private final transient XPath xpath;
+        private final int maxSize;
+
+        private XPathCache(XPath xpath, int maxSize)
+        {
+            super(16, 0.75f, true);
+            this.xpath = xpath;
+            this.maxSize = maxSize;
+        }
+
+        private XPathExpression compile(String expression) throws XPathExpressionException
+        {
+            XPathExpression compiled = get(expression);
+            if (compiled == null)
+            {
+                compiled = xpath.compile(expression);
+                if (maxSize > 0)
                 {
-                    LOGGER.warn("caught an InterruptedException while waiting for a DocumentBuilder instance");
+                    put(expression, compiled);
                 }
             }
+            return compiled;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,XPathExpression> eldest)
+        {
+            return size() > maxSize;
         }
-        return builder;
     }
 
-    private static synchronized void releaseBuilder(DocumentBuilder builder)
+    /* StAX factories are thread-safe once configured */
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    static
     {
-        builder.reset();
-        builderPool.addLast(new SoftReference<DocumentBuilder>(builder));
+        xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
     }
 
     private XmlUtils() {}
@@ -343,11 +563,14 @@ public final class XmlUtils
     {
         Element ret = null;
         DocumentBuilder builder = getDocumentBuilder();
+        if (builder == null)
+        {
+            LOGGER.error("could not parse given xml: no XML DocumentBuilder available");
+            return null;
+        }
         try
         {
             ret = builder.parse(new InputSource(xml)).getDocumentElement();
-            releaseBuilder(builder);
-            return ret;
         }
         catch(Exception e)
         {
@@ -360,6 +583,40 @@ public final class XmlUtils
         return ret;
     }
 
+    /**
+     * Creates a new empty document.
+     * @return new document, or null if no document builder is available
+     */
+    public static Document newDocument()
+    {
+        DocumentBuilder builder = getDocumentBuilder();
+        if (builder == null)
+        {
+            LOGGER.error("could not create XML document: no XML DocumentBuilder available");
+            return null;
+        }
+        try
+        {
+            return builder.newDocument();
+        }
+        finally
+        {
+            releaseBuilder(builder);
+        }
+    }
+
+    /**
+     * Creates a StAX stream reader over the input xml, with the same restrictions as for
+     * DOM parsing (no validation, no DTD nor external entities loading).
+     * @param xml
+     * @return StAX stream reader
+     * @throws XMLStreamException
+     */
+    public static XMLStreamReader createXMLStreamReader(Reader xml) throws XMLStreamException
+    {
+        return xmlInputFactory.createXMLStreamReader(xml);
+    }
+
     /**
      * Attempts to parse the input xml into a single element.
      * @param xml
@@ -370,13 +627,20 @@ public final class XmlUtils
         return parse(new StringReader(xml));
     }
 
+    /**
+     * Evaluates an XPath expression against a context node. Compiled expressions
+     * are cached (per thread), and the cache size can be configured with
+     * the <code>velocity.tools.xml.xpath.cache.size</code> system property.
+     * @param xpath XPath expression
+     * @param context context node
+     * @return found nodes, or null if the expression is invalid
+     */
     public static NodeList search(String xpath, Node context)
     {
         NodeList ret = null;
         try
         {
-            XPath xp = XPathFactory.newInstance().newXPath();
-            XPathExpression exp = xp.compile(xpath);
+            XPathExpression exp = xpathCache.get().compile(xpath);
             ret = (NodeList)exp.evaluate(context, XPathConstants.NODESET);
         }
         catch (XPathExpressionException xpe)
@@ -0,0 +1,419 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.velocity.app.event.ReferenceInsertionEventHandler;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.Renderable;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.tools.BoundedCache;
+import org.apache.velocity.tools.ToolManager;
+import org.apache.velocity.util.RuntimeServicesAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Reference insertion event handler which escapes every inserted reference value
+ * with one of the {@link EscapeTool} escapers, chosen according to the path of the
+ * current template.</p>
+ * <p>Escaping rules are a comma separated list of <code><i>pattern</i>=<i>escaping</i></code>
+ * entries, where the pattern is matched against the whole template name (<code>*</code>
+ * matching any sequence of characters, including slashes), and the escaping is one of
+ * <code>html</code>, <code>xml</code>, <code>javascript</code> or <code>none</code>.
+ * The first matching rule wins, and templates not matching any rule use the default escaping.</p>
+ * <p>Configuration of the engine (for instance in VelocityView's <code>/WEB-INF/velocity.properties</code>):
+ * <pre>
+ * eventhandler.referenceinsertion.class = org.apache.velocity.tools.generic.AutoEscapeReference
+ * eventhandler.autoescape.rules = *.js.vm=javascript, *.xml.vm=xml, /mail/*=none
+ * eventhandler.autoescape.default = html
+ * </pre>
+ * The rules can also be given by an <code>autoEscape</code> global property of the tools
+ * configuration, which then has precedence:
+ * <pre>
+ * &lt;tools&gt;
+ *   &lt;property name="autoEscape" value="*.js.vm=javascript, *.xml.vm=xml"/&gt;
+ *   ...
+ * &lt;/tools&gt;
+ * </pre></p>
+ * <p>Values implementing the {@link Trusted} marker interface, like the ones returned by
+ * <code>$esc.raw($html)</code>, are inserted as is, as well as numbers and booleans.
+ * So are {@link Renderable} values, like the ones returned by <code>$render.stream(...)</code>
+ * or <code>$import.stream(...)</code>, which write their own output: references they
+ * evaluate are escaped when inserted, but their markup is left untouched.
+ * Calls to the EscapeTool method performing the escaping of the current template (like
+ * <code>$esc.html($foo)</code> in an html template, the tool key being given by the
+ * <code>eventhandler.autoescape.tool</code> property) are not escaped twice; calls to
+ * any other EscapeTool method are escaped as usual.</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class AutoEscapeReference implements ReferenceInsertionEventHandler, RuntimeServicesAware
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AutoEscapeReference.class);
+
+    /**
+     * Engine property giving the escaping rules.
+     */
+    public static final String RULES_PROPERTY = "eventhandler.autoescape.rules";
+
+    /**
+     * Engine property giving the escaping of templates not matching any rule, <code>html</code> by default.
+     */
+    public static final String DEFAULT_PROPERTY = "eventhandler.autoescape.default";
+
+    /**
+     * Engine property giving the key of the EscapeTool, <code>esc</code> by default.
+     */
+    public static final String TOOL_PROPERTY = "eventhandler.autoescape.tool";
+
+    /**
+     * Tools configuration global property (and engine application attribute) giving
+     * the escaping rules, with precedence over {@link #RULES_PROPERTY}.
+     */
+    public static final String RULES_KEY = ToolManager.AUTO_ESCAPE_RULES_KEY;
+
+    private static final String NONE = "none";
+
+    /* sentinel for templates which must not be escaped, since cached null values could not be told from missing ones */
+    private static final Escaper UNESCAPED = new Escaper(new String[0])
+    {
+        @Override
+        protected String replacementOutsideTable(String string, int index)
+        {
+            return null;
+        }
+    };
+
+    private static final int MAX_CACHED_TEMPLATES = 1024;
+
+    private RuntimeServices rsvc = null;
+    private String toolPrefix = "esc.";
+    private Rules engineRules;
+    private volatile Rules rules;
+
+    /**
+     * Marker interface for trusted values, which are inserted without escaping.
+     */
+    public interface Trusted
+    {
+    }
+
+    /**
+     * Trusted string, inserted without escaping.
+     */
+    public static class TrustedString implements Trusted, CharSequence
+    {
+        private final String string;
+
+        public TrustedString(String string)
+        {
+            this.string = string;
+        }
+
+        public int length()
+        {
+            return string.length();
+        }
+
+        public char charAt(int index)
+        {
+            return string.charAt(index);
+        }
+
+        public CharSequence subSequence(int start, int end)
+        {
+            return string.subSequence(start, end);
+        }
+
+        @Override
+        public String toString()
+        {
+            return string;
+        }
+    }
+
+    /**
+     * Escaping rules, with a memoized escaper per template name.
+     */
+    protected static class Rules
+    {
+        private final Object source;
+        private final List<Pattern> patterns = new ArrayList<Pattern>();
+        private final List<Escaper> escapers = new ArrayList<Escaper>();
+        private final Escaper defaultEscaper;
+        private final BoundedCache<String,Escaper> templates = new BoundedCache<String,Escaper>(MAX_CACHED_TEMPLATES);
+
+        /**
+         * @param source rules, either as a comma separated string or as a collection of strings
+         * @param defaultEscaper escaper of templates not matching any rule
+         */
+        public Rules(Object source, Escaper defaultEscaper)
+        {
+            this.source = source;
+            this.defaultEscaper = defaultEscaper;
+            List<String> entries = new ArrayList<String>();
+            if (source instanceof Collection)
+            {
+                for (Object entry : (Collection)source)
+                {
+                    entries.add(String.valueOf(entry));
+                }
+            }
+            else if (source != null)
+            {
+                for (String entry : String.valueOf(source).split(","))
+                {
+                    entries.add(entry);
+                }
+            }
+            for (String entry : entries)
+            {
+                entry = entry.trim();
+                if (entry.length() == 0)
+                {
+                    continue;
+                }
+                int eq = entry.lastIndexOf('=');
+                Escaper escaper = eq == -1 ? null : escaperForName(entry.substring(eq + 1).trim());
+                if (escaper == null)
+                {
+                    LOG.error("invalid auto-escaping rule: {}", entry);
+                    continue;
+                }
+                patterns.add(toPattern(entry.substring(0, eq).trim()));
+                escapers.add(escaper);
+            }
+        }
+
+        public Object getSource()
+        {
+            return source;
+        }
+
+        /**
+         * @param templateName template name
+         * @return escaper to use, or <code>null</code> if the template must not be escaped
+         */
+        public Escaper getEscaper(String templateName)
+        {
+            if (templateName == null)
+            {
+                templateName = "";
+            }
+            Escaper escaper = templates.get(templateName);
+            if (escaper == null)
+            {
+                escaper = defaultEscaper;
+                for (int i = 0; i < patterns.size(); ++i)
+                {
+                    if (patterns.get(i).matcher(templateName).matches())
+                    {
+                        escaper = escapers.get(i);
+                        break;
+                    }
+                }
+                templates.put(templateName, escaper);
+            }
+            return escaper == UNESCAPED ? null : escaper;
+        }
+
+        private static Pattern toPattern(String glob)
+        {
+            StringBuilder regex = new StringBuilder();
+            int start = 0;
+            for (int star = glob.indexOf('*'); star != -1; star = glob.indexOf('*', start))
+            {
+                if (star > start)
+                {
+                    regex.append(Pattern.quote(glob.substring(start, star)));
+                }
+                regex.append(".*");
+                start = star + 1;
+            }
+            if (start < glob.length())
+            {
+                regex.append(Pattern.quote(glob.substring(start)));
+            }
+            return Pattern.compile(regex.toString());
+        }
+    }
+
+    /**
+     * @param name escaping name
+     * @return the corresponding escaper, {@link #UNESCAPED} for <code>none</code>,
+     *         or <code>null</code> if the name is unknown
+     */
+    protected static Escaper escaperForName(String name)
+    {
+        if ("html".equalsIgnoreCase(name))
+        {
+            return Escaper.HTML;
+        }
+        else if ("xml".equalsIgnoreCase(name))
+        {
+            return Escaper.XML;
+        }
+        else if ("javascript".equalsIgnoreCase(name))
+        {
+            return Escaper.JAVASCRIPT;
+        }
+        else if (NONE.equalsIgnoreCase(name))
+        {
+            return UNESCAPED;
+        }
+        return null;
+    }
+
+    public void setRuntimeServices(RuntimeServices rs)
+    {
+        this.rsvc = rs;
+        String defaultName = rs.getString(DEFAULT_PROPERTY, "html");
+        Escaper defaultEscaper = escaperForName(defaultName.trim());
+        if (defaultEscaper == null)
+        {
+            LOG.error("invalid default auto-escaping: {}, using html", defaultName);
+            defaultEscaper = Escaper.HTML;
+        }
+        engineRules = new Rules(rs.getProperty(RULES_PROPERTY), defaultEscaper);
+        rules = engineRules;
+        toolPrefix = rs.getString(TOOL_PROPERTY, EscapeTool.DEFAULT_KEY).trim() + ".";
+    }
+
+    /**
+     * Gets the current rules, taking into account the rules given as application attribute.
+     * @return current rules
+     */
+    protected Rules getRules()
+    {
+        Rules current = rules;
+        Object attribute = rsvc == null ? null : rsvc.getApplicationAttribute(RULES_KEY);
+        Object expected = attribute == null ? engineRules.getSource() : attribute;
+        if (current.getSource() != expected)
+        {
+            synchronized (this)
+            {
+                current = rules;
+                if (current.getSource() != expected)
+                {
+                    current = attribute == null ? engineRules : new Rules(attribute, engineRules.defaultEscaper);
+                    rules = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Escapes the value of the inserted reference, according to the current template name.
+     * @param context current context
+     * @param reference literal reference
+     * @param value reference value
+     * @return escaped value
+     */
+    public Object referenceInsert(Context context, String reference, Object value)
+    {
+        if (value == null || value instanceof Trusted || value instanceof Renderable ||
+            value instanceof Number || value instanceof Boolean)
+        {
+            return value;
+        }
+        String templateName = context instanceof InternalContextAdapter ? ((InternalContextAdapter)context).getCurrentTemplateName() : null;
+        Escaper escaper = getRules().getEscaper(templateName);
+        if (escaper == null || isEscapeToolCall(reference, escaper))
+        {
+            return value;
+        }
+        return escaper.escape(String.valueOf(value));
+    }
+
+    /**
+     * Checks whether the reference is a single call to the EscapeTool method
+     * performing the given escaping, like <code>$esc.html($foo)</code> for html.
+     * References calling any other method, or calling further methods on the
+     * escaped value, are not considered as escaped.
+     * @param reference literal reference
+     * @param escaper escaper of the current template
+     * @return whether the reference value is already escaped with this escaper
+     */
+    protected boolean isEscapeToolCall(String reference, Escaper escaper)
+    {
+        if (reference == null)
+        {
+            return false;
+        }
+        int start = reference.startsWith("$") ? 1 : 0;
+        if (reference.startsWith("!", start))
+        {
+            ++start;
+        }
+        boolean braces = reference.startsWith("{", start);
+        if (braces)
+        {
+            ++start;
+        }
+        if (!reference.startsWith(toolPrefix, start))
+        {
+            return false;
+        }
+        start += toolPrefix.length();
+        int paren = reference.indexOf('(', start);
+        if (paren == -1 || escaperForName(reference.substring(start, paren)) != escaper)
+        {
+            return false;
+        }
+        /* find the closing parenthesis of the call, skipping string literals */
+        int depth = 0;
+        char quote = 0;
+        int end = paren;
+        for (; end < reference.length(); ++end)
+        {
+            char c = reference.charAt(end);
+            if (quote != 0)
+            {
+                if (c == quote)
+                {
+                    quote = 0;
+                }
+            }
+            else if (c == '"' || c == '\'')
+            {
+                quote = c;
+            }
+            else if (c == '(')
+            {
+                ++depth;
+            }
+            else if (c == ')' && --depth == 0)
+            {
+                break;
+            }
+        }
+        /* nothing but the closing brace may follow the call */
+        String rest = end < reference.length() ? reference.substring(end + 1).trim() : null;
+        return rest != null && rest.equals(braces ? "}" : "");
+    }
+}
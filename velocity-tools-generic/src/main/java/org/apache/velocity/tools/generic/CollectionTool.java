@@ -19,7 +19,7 @@ package org.apache.velocity.tools.generic;
  * under the License.
  */
 
-import org.apache.commons.beanutils.PropertyUtils;
+import org.apache.velocity.tools.ClassUtils;
 import org.apache.velocity.tools.config.DefaultKey;
 
 import java.io.Serializable;
@@ -29,7 +29,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
  * <p>CollectionTool allows a user to sort a collection (or array, iterator, etc)
@@ -388,8 +390,18 @@ public class CollectionTool extends SafeConfig
             if (properties == null)
             {
                 Collections.sort(list);
-            } else {
-                Collections.sort(list, new PropertiesComparator(properties));
+            }
+            else if (list.size() > 1)
+            {
+                PropertiesComparator comparator = new PropertiesComparator(properties);
+                SortEntry[] entries = comparator.decorate(list);
+                Arrays.sort(entries, comparator.entriesComparator(entries));
+                ListIterator it = list.listIterator();
+                for (SortEntry entry : entries)
+                {
+                    it.next();
+                    it.set(entry.element);
+                }
             }
             return list;
         }
@@ -400,6 +412,242 @@ public class CollectionTool extends SafeConfig
         }
     }
 
+    /**
+     * Returns the first elements of a collection (or array, or Map's values)
+     * sorted on a single property, without sorting the whole collection.
+     *
+     * <p>Example: <code>#foreach($item in $sorter.top($items, 'score:desc', 10))</code></p>
+     *
+     * @param object the collection
+     * @param property the property to sort on
+     * @param count maximum number of elements to return
+     * @return the first <i>count</i> sorted elements, or <code>null</code>
+     *         if the object type is not supported or if sorting failed
+     * @since VelocityTools 3.0
+     */
+    public List top(Object object, String property, int count)
+    {
+        return page(object, Collections.singletonList(property), 0, count);
+    }
+
+    /**
+     * Returns the first elements of a collection (or array, or Map's values)
+     * sorted on a set of properties, without sorting the whole collection.
+     *
+     * @param object the collection
+     * @param properties the properties to sort on
+     * @param count maximum number of elements to return
+     * @return the first <i>count</i> sorted elements, or <code>null</code>
+     *         if the object type is not supported or if sorting failed
+     * @since VelocityTools 3.0
+     */
+    public List top(Object object, List properties, int count)
+    {
+        return page(object, properties, 0, count);
+    }
+
+    /**
+     * Returns a page of a collection (or array, or Map's values) sorted
+     * on a single property, without sorting the whole collection.
+     *
+     * @param object the collection
+     * @param property the property to sort on
+     * @param offset index of the first element to return
+     * @param limit maximum number of elements to return
+     * @return the elements from <i>offset</i> to <i>offset + limit</i>
+     *         of the sorted collection, or <code>null</code> if the object
+     *         type is not supported or if sorting failed
+     * @since VelocityTools 3.0
+     */
+    public List page(Object object, String property, int offset, int limit)
+    {
+        return page(object, Collections.singletonList(property), offset, limit);
+    }
+
+    /**
+     * Returns a page of a collection (or array, or Map's values) sorted
+     * on a set of properties, without sorting the whole collection: the
+     * first <i>offset + limit</i> elements are selected using a bounded
+     * heap, and only those are sorted. The original collection is left
+     * untouched.
+     *
+     * @param object the collection
+     * @param properties the properties to sort on
+     * @param offset index of the first element to return
+     * @param limit maximum number of elements to return
+     * @return the elements from <i>offset</i> to <i>offset + limit</i>
+     *         of the sorted collection, or <code>null</code> if the object
+     *         type is not supported or if sorting failed
+     * @since VelocityTools 3.0
+     */
+    public List page(Object object, List properties, int offset, int limit)
+    {
+        Collection collection;
+        if (object instanceof Collection)
+        {
+            collection = (Collection)object;
+        }
+        else if (object instanceof Object[])
+        {
+            collection = Arrays.asList((Object[])object);
+        }
+        else if (object instanceof Map)
+        {
+            collection = ((Map)object).values();
+        }
+        else
+        {
+            // the object type is not supported
+            getLog().error("object type not supported: {}", object == null ? "null" : object.getClass().getName());
+            return null;
+        }
+        if (properties == null)
+        {
+            getLog().error("no properties to sort on");
+            return null;
+        }
+        offset = Math.max(0, offset);
+        int count = (int)Math.min((long)offset + Math.max(0, limit), collection.size());
+        if (offset >= count)
+        {
+            return new ArrayList();
+        }
+        try
+        {
+            PropertiesComparator comparator = new PropertiesComparator(properties);
+            SortEntry[] entries = comparator.decorate(collection);
+            SortEntry[] selected = select(entries, comparator.entriesComparator(entries), count);
+            List page = new ArrayList(count - offset);
+            for (int i = offset; i < count; i++)
+            {
+                page.add(selected[i].element);
+            }
+            return page;
+        }
+        catch (Exception e)
+        {
+            getLog().error("exception encountered while sorting: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Selects and sorts the first entries. Equal entries keep their
+     * original order, as with a full (stable) sort.
+     *
+     * @param entries entries to select from
+     * @param comparator entries comparator
+     * @param count number of entries to select
+     * @return the first <i>count</i> sorted entries
+     */
+    protected static SortEntry[] select(SortEntry[] entries, final Comparator<SortEntry> comparator, int count)
+    {
+        if (count >= entries.length / 2)
+        {
+            // not worth it
+            Arrays.sort(entries, comparator);
+            return entries;
+        }
+        // break ties on original position, so that the heap gives the same result as a stable sort
+        Comparator<SortEntry> stable = new Comparator<SortEntry>()
+        {
+            @Override
+            public int compare(SortEntry lhs, SortEntry rhs)
+            {
+                int comparison = comparator.compare(lhs, rhs);
+                return comparison != 0 ? comparison : (lhs.index < rhs.index ? -1 : (lhs.index == rhs.index ? 0 : 1));
+            }
+        };
+        // max-heap of the best entries found so far, whose head is the worst of them
+        PriorityQueue<SortEntry> heap = new PriorityQueue<SortEntry>(count, Collections.reverseOrder(stable));
+        for (SortEntry entry : entries)
+        {
+            if (heap.size() < count)
+            {
+                heap.add(entry);
+            }
+            else if (stable.compare(entry, heap.peek()) < 0)
+            {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        SortEntry[] selected = heap.toArray(new SortEntry[heap.size()]);
+        Arrays.sort(selected, stable);
+        return selected;
+    }
+
+    /**
+     * Element to sort, along with its position, used to retrieve its
+     * extracted sort keys.
+     */
+    protected static class SortEntry
+    {
+        protected final Object element;
+        protected final int index;
+
+        protected SortEntry(Object element, int index)
+        {
+            this.element = element;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Compares sort entries using sort keys extracted once per element.
+     * Keys of a property are stored in a <code>long[]</code> or a
+     * <code>double[]</code> when they are all integers or all floating point
+     * numbers of the same class, and in a <code>Comparable[]</code> otherwise.
+     * If keys of a property cannot be extracted for all elements, they are
+     * retrieved during comparisons, so that elements lacking secondary
+     * properties can still be sorted if their primary properties differ.
+     */
+    protected static class EntriesComparator implements Comparator<SortEntry>
+    {
+        private final PropertiesComparator comparator;
+        private final Object[] keys;
+
+        protected EntriesComparator(PropertiesComparator comparator, Object[] keys)
+        {
+            this.comparator = comparator;
+            this.keys = keys;
+        }
+
+        @Override
+        public int compare(SortEntry lhs, SortEntry rhs)
+        {
+            for (int i = 0; i < keys.length; i++)
+            {
+                int comparison;
+                Object column = keys[i];
+                if (column instanceof long[])
+                {
+                    long[] values = (long[])column;
+                    comparison = Long.compare(values[lhs.index], values[rhs.index]);
+                }
+                else if (column instanceof double[])
+                {
+                    double[] values = (double[])column;
+                    comparison = Double.compare(values[lhs.index], values[rhs.index]);
+                }
+                else if (column instanceof Comparable[])
+                {
+                    Comparable[] values = (Comparable[])column;
+                    comparison = compareValues(values[lhs.index], values[rhs.index]);
+                }
+                else
+                {
+                    String property = (String)comparator.properties.get(i);
+                    comparison = compareValues(getComparable(lhs.element, property), getComparable(rhs.element, property));
+                }
+                if (comparison != 0)
+                {
+                    return comparison * comparator.sortTypes[i];
+                }
+            }
+            return 0;
+        }
+    }
 
     /**
      * Does all of the comparisons
@@ -472,39 +720,117 @@ public class CollectionTool extends SafeConfig
         {
             for (int i = 0; i < properties.size(); i++)
             {
-                int comparison = 0;
                 String property = (String)properties.get(i);
 
                 // properties must be comparable
-                Comparable left = getComparable(lhs, property);
-                Comparable right = getComparable(rhs, property);
+                int comparison = compareValues(getComparable(lhs, property), getComparable(rhs, property));
 
-                if (left == null && right != null)
+                // return the first difference we find
+                if (comparison != 0)
                 {
-                    // find out how right feels about left being null
-                    comparison = right.compareTo(null);
-                    // and reverse that (if it works)
-                    comparison *= -1;
+                    // multiplied by the sort direction, of course
+                    return comparison * sortTypes[i];
                 }
-                else if (left instanceof String)
+            }
+            return 0;
+        }
+
+        /**
+         * Wraps the elements of a collection in sort entries.
+         */
+        protected SortEntry[] decorate(Collection collection)
+        {
+            SortEntry[] entries = new SortEntry[collection.size()];
+            int index = 0;
+            for (Object element : collection)
+            {
+                entries[index] = new SortEntry(element, index);
+                ++index;
+            }
+            return entries;
+        }
+
+        /**
+         * Extracts the sort keys of the given entries, once per element,
+         * and returns a comparator of those entries.
+         */
+        protected EntriesComparator entriesComparator(SortEntry[] entries)
+        {
+            Object[] keys = new Object[properties.size()];
+            for (int i = 0; i < keys.length; i++)
+            {
+                keys[i] = extractKeys(entries, (String)properties.get(i));
+            }
+            return new EntriesComparator(this, keys);
+        }
+
+        private static Object extractKeys(SortEntry[] entries, String property)
+        {
+            Comparable[] values = new Comparable[entries.length];
+            Class uniqueClass = null;
+            for (int i = 0; i < entries.length; i++)
+            {
+                try
                 {
-                    //TODO: make it optional whether or not case is ignored
-                    comparison = ((String)left).compareToIgnoreCase((String)right);
+                    values[i] = getComparable(entries[i].element, property);
                 }
-                else if (left != null)
+                catch (IllegalArgumentException iae)
                 {
-                    comparison = left.compareTo(right);
+                    // keys will be retrieved during comparisons
+                    return null;
                 }
-
-                // return the first difference we find
-                if (comparison != 0)
+                Class clazz = values[i] == null ? null : values[i].getClass();
+                if (i == 0 || clazz != uniqueClass)
                 {
-                    // multiplied by the sort direction, of course
-                    return comparison * sortTypes[i];
+                    uniqueClass = i == 0 ? clazz : null;
                 }
             }
-            return 0;
+            if (uniqueClass == Integer.class || uniqueClass == Long.class ||
+                uniqueClass == Short.class || uniqueClass == Byte.class)
+            {
+                long[] longs = new long[values.length];
+                for (int i = 0; i < values.length; i++)
+                {
+                    longs[i] = ((Number)values[i]).longValue();
+                }
+                return longs;
+            }
+            else if (uniqueClass == Double.class || uniqueClass == Float.class)
+            {
+                double[] doubles = new double[values.length];
+                for (int i = 0; i < values.length; i++)
+                {
+                    doubles[i] = ((Number)values[i]).doubleValue();
+                }
+                return doubles;
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Compares two property values.
+     */
+    protected static int compareValues(Comparable left, Comparable right)
+    {
+        int comparison = 0;
+        if (left == null && right != null)
+        {
+            // find out how right feels about left being null
+            comparison = right.compareTo(null);
+            // and reverse that (if it works)
+            comparison *= -1;
+        }
+        else if (left instanceof String)
+        {
+            //TODO: make it optional whether or not case is ignored
+            comparison = ((String)left).compareToIgnoreCase((String)right);
+        }
+        else if (left != null)
+        {
+            comparison = left.compareTo(right);
         }
+        return comparison;
     }
 
     /**
@@ -517,7 +843,7 @@ public class CollectionTool extends SafeConfig
     {
         try
         {
-            return (Comparable)PropertyUtils.getProperty(object, property);
+            return (Comparable)ClassUtils.getProperty(object, property);
         }
         catch (Exception e)
         {
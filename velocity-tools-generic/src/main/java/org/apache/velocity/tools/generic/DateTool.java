@@ -86,6 +86,25 @@ import org.apache.velocity.tools.config.DefaultKey;
 @DefaultKey("date")
 public class DateTool extends FormatConfig implements Serializable
 {
+    /* whether a subclass overrides the DateFormat creation methods, in which case
+     * formatting goes through them rather than through the per-thread formats cache */
+    private static final ClassValue<Boolean> customFormats = new ClassValue<Boolean>()
+    {
+        @Override
+        protected Boolean computeValue(Class<?> clazz)
+        {
+            try
+            {
+                return clazz.getMethod("getDateFormat", String.class, Locale.class, TimeZone.class).getDeclaringClass() != DateTool.class ||
+                    clazz.getMethod("getDateFormat", String.class, String.class, Locale.class, TimeZone.class).getDeclaringClass() != DateTool.class;
+            }
+            catch (NoSuchMethodException nsme)
+            {
+                return true;
+            }
+        }
+    };
+
     /**
      * The key used for specifying a default timezone via tool configuration.
      */
@@ -455,7 +474,9 @@ public class DateTool extends FormatConfig implements Serializable
                          Locale locale, TimeZone timezone)
     {
         Date date = toDate(obj);
-        DateFormat df = getDateFormat(format, locale, timezone);
+        DateFormat df = customFormats.get(getClass()) ?
+            getDateFormat(format, locale, timezone) :
+            ConversionUtils.getCachedDateFormat(format, locale, timezone);
         if (date == null || df == null)
         {
             return null;
@@ -516,7 +537,9 @@ public class DateTool extends FormatConfig implements Serializable
                          Object obj, Locale locale, TimeZone timezone)
     {
         Date date = toDate(obj);
-        DateFormat df = getDateFormat(dateStyle, timeStyle, locale, timezone);
+        DateFormat df = customFormats.get(getClass()) ?
+            getDateFormat(dateStyle, timeStyle, locale, timezone) :
+            ConversionUtils.getCachedDateFormat(dateStyle, timeStyle, locale, timezone);
         if (date == null || df == null)
         {
             return null;
@@ -534,6 +557,8 @@ public class DateTool extends FormatConfig implements Serializable
      * will be returned with both the date and time styles set to the
      * specified style.  If it is a custom format, then a customized
      * {@link SimpleDateFormat} will be returned.
+     * The format() methods go through this method when a subclass
+     * overrides it, and through per-thread cached instances otherwise.
      *
      * @param format the custom or standard formatting pattern to be used
      * @param locale the {@link Locale} to be used
@@ -552,6 +577,8 @@ public class DateTool extends FormatConfig implements Serializable
     /**
      * Returns a {@link DateFormat} instance for the specified
      * date style, time style, {@link Locale}, and {@link TimeZone}.
+     * The format() methods go through this method when a subclass
+     * overrides it, and through per-thread cached instances otherwise.
      *
      * @param dateStyle the date style
      * @param timeStyle the time style
@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.regex.Pattern;
 
+import org.apache.velocity.tools.ConversionUtils;
 import org.apache.velocity.tools.Scope;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.velocity.tools.config.DefaultKey;
@@ -391,7 +392,7 @@ public class DisplayTool extends LocaleConfig
                 args = list.toArray();
             }
         }
-        return MessageFormat.format(format, args);
+        return ConversionUtils.formatMessage(format, args);
     }
 
     /**
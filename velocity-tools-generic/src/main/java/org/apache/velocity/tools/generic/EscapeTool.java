@@ -19,11 +19,15 @@ package org.apache.velocity.tools.generic;
  * under the License.
  */
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLEncoder;
 import java.net.URLDecoder;
 
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.Renderable;
 import org.apache.velocity.tools.Scope;
 import org.apache.velocity.tools.config.DefaultKey;
 import org.apache.velocity.tools.config.ValidScope;
@@ -279,7 +283,7 @@ public class EscapeTool extends SafeConfig
     /**
      * Escapes the characters in a <code>String</code> using JavaScript String rules.
      * <br />
-     * Delegates the process to {@link StringEscapeUtils#escapeEcmaScript(String)}.
+     * Gives the same result as {@link StringEscapeUtils#escapeEcmaScript(String)}, using {@link Escaper#JAVASCRIPT}.
      *
      * @param string the string to escape values, may be null
      * @return String with escaped values, <code>null</code> if null string input
@@ -292,13 +296,32 @@ public class EscapeTool extends SafeConfig
         {
             return null;
         }
-        return StringEscapeUtils.escapeEcmaScript(String.valueOf(string));
+        return Escaper.JAVASCRIPT.escape(String.valueOf(string));
+    }
+
+    /**
+     * Returns an object which, when rendered, escapes the characters of the provided
+     * value using JavaScript String rules and writes them directly into the template output, without
+     * building an intermediate String.
+     *
+     * @param string the value to escape, may be null
+     * @return a renderable object, <code>null</code> if null string input
+     * @see #javascript(Object)
+     * @since VelocityTools 3.0
+     */
+    public Renderable javascriptStream(Object string)
+    {
+        if (string == null)
+        {
+            return null;
+        }
+        return new EscapedStream(Escaper.JAVASCRIPT, string);
     }
 
     /**
      * Escapes the characters in a <code>String</code> using HTML entities.
      * <br />
-     * Delegates the process to {@link StringEscapeUtils#escapeHtml4(String)}.
+     * Gives the same result as {@link StringEscapeUtils#escapeHtml4(String)}, using {@link Escaper#HTML}.
      *
      * @param string the string to escape, may be null
      * @return a new escaped <code>String</code>, <code>null</code> if null string input
@@ -311,7 +334,26 @@ public class EscapeTool extends SafeConfig
         {
             return null;
         }
-        return StringEscapeUtils.escapeHtml4(String.valueOf(string));
+        return Escaper.HTML.escape(String.valueOf(string));
+    }
+
+    /**
+     * Returns an object which, when rendered, escapes the characters of the provided
+     * value using HTML entities and writes them directly into the template output, without
+     * building an intermediate String.
+     *
+     * @param string the value to escape, may be null
+     * @return a renderable object, <code>null</code> if null string input
+     * @see #html(Object)
+     * @since VelocityTools 3.0
+     */
+    public Renderable htmlStream(Object string)
+    {
+        if (string == null)
+        {
+            return null;
+        }
+        return new EscapedStream(Escaper.HTML, string);
     }
 
     /**
@@ -359,12 +401,12 @@ public class EscapeTool extends SafeConfig
     /**
      * Escapes the characters in a <code>String</code> using XML entities.
      * <br />
-     * Delegates the process to {@link StringEscapeUtils#escapeXml(String)}.
+     * Gives the same result as {@link StringEscapeUtils#escapeXml10(String)}, using {@link Escaper#XML}.
      *
      * @param string the string to escape, may be null
      * @return a new escaped <code>String</code>, <code>null</code> if null string input
      *
-     * @see StringEscapeUtils#escapeXml(String)
+     * @see StringEscapeUtils#escapeXml10(String)
      */
     public String xml(Object string)
     {
@@ -372,7 +414,43 @@ public class EscapeTool extends SafeConfig
         {
             return null;
         }
-        return StringEscapeUtils.escapeXml10(String.valueOf(string));
+        return Escaper.XML.escape(String.valueOf(string));
+    }
+
+    /**
+     * Returns an object which, when rendered, escapes the characters of the provided
+     * value using XML entities and writes them directly into the template output, without
+     * building an intermediate String.
+     *
+     * @param string the value to escape, may be null
+     * @return a renderable object, <code>null</code> if null string input
+     * @see #xml(Object)
+     * @since VelocityTools 3.0
+     */
+    public Renderable xmlStream(Object string)
+    {
+        if (string == null)
+        {
+            return null;
+        }
+        return new EscapedStream(Escaper.XML, string);
+    }
+
+    /**
+     * Marks a value as trusted content, which will be inserted without escaping
+     * when reference insertions are automatically escaped by {@link AutoEscapeReference}.
+     *
+     * @param string the trusted content, may be null
+     * @return the trusted content, <code>null</code> if null string input
+     * @since VelocityTools 3.0
+     */
+    public AutoEscapeReference.TrustedString raw(Object string)
+    {
+        if (string == null)
+        {
+            return null;
+        }
+        return new AutoEscapeReference.TrustedString(String.valueOf(string));
     }
 
     /**
@@ -561,4 +639,34 @@ public class EscapeTool extends SafeConfig
         return this.getExclamation();
     }
 
+    /**
+     * Renderable object writing an escaped value
+     * towards the template writer.
+     */
+    protected static class EscapedStream implements Renderable
+    {
+        private final Escaper escaper;
+        private final Object value;
+
+        protected EscapedStream(Escaper escaper, Object value)
+        {
+            this.escaper = escaper;
+            this.value = value;
+        }
+
+        public boolean render(InternalContextAdapter context, Writer writer) throws IOException
+        {
+            escaper.escape(String.valueOf(value), writer);
+            return true;
+        }
+
+        /**
+         * @return the escaped value, when used outside of a rendering
+         */
+        public String toString()
+        {
+            return escaper.escape(String.valueOf(value));
+        }
+    }
+
 }
@@ -0,0 +1,250 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.commons.lang3.text.translate.EntityArrays;
+
+/**
+ * <p>Single-pass, table-driven string escaper, used by {@link EscapeTool}.</p>
+ * <p>The input is first scanned for a character needing escaping: if there is none,
+ * the input string itself is returned. Otherwise, the replacement of each character
+ * is looked up in a table indexed by character, and appended to a pre-sized buffer
+ * or directly written to a writer.</p>
+ * <p>The provided {@link #HTML}, {@link #XML} and {@link #JAVASCRIPT} escapers give
+ * the same output as the commons-lang3 <code>StringEscapeUtils.escapeHtml4()</code>,
+ * <code>escapeXml10()</code> and <code>escapeEcmaScript()</code> methods.</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public abstract class Escaper
+{
+    /**
+     * HTML 4 escaper
+     */
+    public static final Escaper HTML = new Escaper(htmlTable())
+    {
+        @Override
+        protected String replacementOutsideTable(String string, int index)
+        {
+            return null;
+        }
+    };
+
+    /**
+     * XML 1.0 escaper
+     */
+    public static final Escaper XML = new Escaper(xmlTable())
+    {
+        @Override
+        protected String replacementOutsideTable(String string, int index)
+        {
+            char c = string.charAt(index);
+            if (c == 0xFFFE || c == 0xFFFF)
+            {
+                return "";
+            }
+            if (Character.isHighSurrogate(c))
+            {
+                /* unpaired surrogates are removed */
+                return index + 1 < string.length() && Character.isLowSurrogate(string.charAt(index + 1)) ? null : "";
+            }
+            if (Character.isLowSurrogate(c))
+            {
+                return index > 0 && Character.isHighSurrogate(string.charAt(index - 1)) ? null : "";
+            }
+            return null;
+        }
+    };
+
+    /**
+     * JavaScript (ECMAScript) string escaper
+     */
+    public static final Escaper JAVASCRIPT = new Escaper(javascriptTable())
+    {
+        @Override
+        protected String replacementOutsideTable(String string, int index)
+        {
+            return unicodeEscape(string.charAt(index));
+        }
+    };
+
+    private final String[] table;
+
+    /**
+     * @param table replacement strings, indexed by character, <code>null</code>
+     *        meaning that the character does not need escaping
+     */
+    protected Escaper(String[] table)
+    {
+        this.table = table;
+    }
+
+    /**
+     * Gives the replacement of a character whose code is beyond the table length.
+     * @param string input string
+     * @param index character position
+     * @return replacement string, or <code>null</code> if the character does not need escaping
+     */
+    protected abstract String replacementOutsideTable(String string, int index);
+
+    private String replacement(String string, int index)
+    {
+        char c = string.charAt(index);
+        return c < table.length ? table[c] : replacementOutsideTable(string, index);
+    }
+
+    private int firstToEscape(String string, int from)
+    {
+        int length = string.length();
+        for (int i = from; i < length; ++i)
+        {
+            if (replacement(string, i) != null)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Escapes a string.
+     * @param string input string
+     * @return escaped string, which is the input string itself if no character needs escaping
+     */
+    public String escape(String string)
+    {
+        int first = firstToEscape(string, 0);
+        if (first == -1)
+        {
+            return string;
+        }
+        int length = string.length();
+        StringBuilder builder = new StringBuilder(length + Math.max(16, length / 8));
+        builder.append(string, 0, first);
+        for (int i = first; i < length; ++i)
+        {
+            String replacement = replacement(string, i);
+            if (replacement == null)
+            {
+                builder.append(string.charAt(i));
+            }
+            else
+            {
+                builder.append(replacement);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Escapes a string towards a writer.
+     * @param string input string
+     * @param writer target writer
+     * @throws IOException if thrown by the writer
+     */
+    public void escape(String string, Writer writer) throws IOException
+    {
+        int length = string.length();
+        int start = 0;
+        for (int i = firstToEscape(string, 0); i != -1; i = firstToEscape(string, i + 1))
+        {
+            if (i > start)
+            {
+                writer.write(string, start, i - start);
+            }
+            writer.write(replacement(string, i));
+            start = i + 1;
+        }
+        if (start < length)
+        {
+            writer.write(string, start, length - start);
+        }
+    }
+
+    private static String unicodeEscape(char c)
+    {
+        String hex = Integer.toHexString(c).toUpperCase();
+        return "\\u0000".substring(0, 6 - hex.length()) + hex;
+    }
+
+    private static String[] table(int length, String[][]... mappings)
+    {
+        String[] table = new String[length];
+        for (String[][] mapping : mappings)
+        {
+            for (String[] entry : mapping)
+            {
+                table[entry[0].charAt(0)] = entry[1];
+            }
+        }
+        return table;
+    }
+
+    private static String[] htmlTable()
+    {
+        String[][] extended = EntityArrays.HTML40_EXTENDED_ESCAPE();
+        int length = 0x100;
+        for (String[] entry : extended)
+        {
+            length = Math.max(length, entry[0].charAt(0) + 1);
+        }
+        return table(length, EntityArrays.BASIC_ESCAPE(), EntityArrays.ISO8859_1_ESCAPE(), extended);
+    }
+
+    private static String[] xmlTable()
+    {
+        String[] table = table(0xA0, EntityArrays.BASIC_ESCAPE(), EntityArrays.APOS_ESCAPE());
+        /* control characters not allowed in XML 1.0 are removed */
+        for (char c = 0; c < 0x20; ++c)
+        {
+            if (c != '\t' && c != '\n' && c != '\r')
+            {
+                table[c] = "";
+            }
+        }
+        /* discouraged ones are escaped */
+        for (char c = 0x7F; c < 0xA0; ++c)
+        {
+            if (c != 0x85)
+            {
+                table[c] = "&#" + (int)c + ";";
+            }
+        }
+        return table;
+    }
+
+    private static String[] javascriptTable()
+    {
+        String[] table = table(0x80, new String[][] { { "'", "\\'" }, { "\"", "\\\"" }, { "\\", "\\\\" }, { "/", "\\/" } });
+        for (char c = 0; c < 0x20; ++c)
+        {
+            table[c] = unicodeEscape(c);
+        }
+        for (String[] entry : EntityArrays.JAVA_CTRL_CHARS_ESCAPE())
+        {
+            table[entry[0].charAt(0)] = entry[1];
+        }
+        return table;
+    }
+}
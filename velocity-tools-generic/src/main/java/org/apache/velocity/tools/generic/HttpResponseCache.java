@@ -0,0 +1,592 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Application-wide cache of HTTP responses bodies, used by {@link ImportSupport}
+ * (and thus by ImportTool, JsonTool and XmlTool) when its <code>httpCache</code>
+ * configuration property is true.</p>
+ * <p>Responses are cached according to their <code>Cache-Control</code> and
+ * <code>Expires</code> headers, and stale responses carrying an <code>ETag</code>
+ * or a <code>Last-Modified</code> header are revalidated with a conditional request.
+ * Responses marked as <code>private</code> or <code>no-store</code>, or varying on
+ * request headers, are not cached.</p>
+ * <p>The cache is a least-recently-used map bounded by the total size of cached
+ * bodies. Entries evicted from memory can optionally overflow to a disk directory,
+ * itself bounded in size.</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class HttpResponseCache
+{
+    private static final Logger LOG = LoggerFactory.getLogger(HttpResponseCache.class);
+
+    /**
+     * Name of the subdirectory, owned by the cache, of the configured overflow directory.
+     */
+    public static final String SUBDIRECTORY = "velocity-tools-http-cache";
+
+    private static final String FILE_SUFFIX = ".httpcache";
+
+    private static final ConcurrentMap<String,HttpResponseCache> instances = new ConcurrentHashMap<String,HttpResponseCache>();
+
+    private final long maxMemorySize;
+    private final File directory;
+    private final long maxDiskSize;
+
+    private final LinkedHashMap<String,Entry> memory = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    private long memorySize = 0;
+
+    private final LinkedHashMap<String,CacheFile> disk = new LinkedHashMap<String,CacheFile>(16, 0.75f, true);
+    private long diskSize = 0;
+    private final AtomicLong fileCounter = new AtomicLong();
+
+    /* incremented by clear(), so that entries being written meanwhile are discarded */
+    private long generation = 0;
+
+    /**
+     * Returns the shared cache instance for the given settings.
+     * @param maxMemorySize maximum size of cached bodies in memory, in bytes
+     * @param directory overflow directory, or <code>null</code>
+     * @param maxDiskSize maximum size of the overflow directory, in bytes
+     * @return the cache instance
+     */
+    public static HttpResponseCache getInstance(long maxMemorySize, File directory, long maxDiskSize)
+    {
+        String key = maxMemorySize + ":" + (directory == null ? "" : directory.getAbsolutePath()) + ":" + maxDiskSize;
+        HttpResponseCache cache = instances.get(key);
+        if (cache == null)
+        {
+            cache = new HttpResponseCache(maxMemorySize, directory, maxDiskSize);
+            HttpResponseCache previous = instances.putIfAbsent(key, cache);
+            if (previous != null)
+            {
+                cache = previous;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Creates a new cache. Overflow files are stored in the {@link #SUBDIRECTORY} subdirectory
+     * of the given directory, and the ones left there by a previous instance are removed.
+     * @param maxMemorySize maximum size of cached bodies in memory, in bytes
+     * @param directory overflow directory, or <code>null</code>
+     * @param maxDiskSize maximum size of the overflow directory, in bytes
+     */
+    public HttpResponseCache(long maxMemorySize, File directory, long maxDiskSize)
+    {
+        this.maxMemorySize = maxMemorySize;
+        if (directory != null && maxDiskSize > 0)
+        {
+            directory = new File(directory, SUBDIRECTORY);
+            if (!directory.isDirectory() && !directory.mkdirs())
+            {
+                LOG.error("could not create http cache directory {}", directory);
+                directory = null;
+            }
+            else
+            {
+                File[] files = directory.listFiles();
+                if (files != null)
+                {
+                    for (File file : files)
+                    {
+                        if (file.getName().endsWith(FILE_SUFFIX))
+                        {
+                            file.delete();
+                        }
+                    }
+                }
+            }
+        }
+        else
+        {
+            directory = null;
+        }
+        this.directory = directory;
+        this.maxDiskSize = maxDiskSize;
+    }
+
+    /**
+     * Gets a cached entry, either fresh or stale.
+     * @param url URL
+     * @return cached entry or <code>null</code>
+     */
+    public Entry get(String url)
+    {
+        CacheFile cached;
+        synchronized (this)
+        {
+            Entry entry = memory.get(url);
+            if (entry != null || directory == null)
+            {
+                return entry;
+            }
+            cached = removeFromDisk(url);
+        }
+        if (cached == null)
+        {
+            return null;
+        }
+        /* file I/O happens outside of the lock */
+        Entry entry = readEntry(cached.file);
+        cached.file.delete();
+        if (entry != null)
+        {
+            List<Map.Entry<String,Entry>> evicted;
+            long gen;
+            synchronized (this)
+            {
+                Entry fresher = memory.get(url);
+                if (fresher != null)
+                {
+                    return fresher;
+                }
+                evicted = putInMemory(url, entry);
+                gen = generation;
+            }
+            overflow(evicted, gen);
+        }
+        return entry;
+    }
+
+    /**
+     * Caches an entry.
+     * @param url URL
+     * @param entry entry to cache
+     */
+    public void put(String url, Entry entry)
+    {
+        CacheFile obsolete;
+        List<Map.Entry<String,Entry>> evicted;
+        long gen;
+        synchronized (this)
+        {
+            obsolete = removeFromDisk(url);
+            evicted = putInMemory(url, entry);
+            gen = generation;
+        }
+        if (obsolete != null)
+        {
+            obsolete.file.delete();
+        }
+        overflow(evicted, gen);
+    }
+
+    /**
+     * Removes an entry.
+     * @param url URL
+     */
+    public void remove(String url)
+    {
+        CacheFile obsolete;
+        synchronized (this)
+        {
+            Entry previous = memory.remove(url);
+            if (previous != null)
+            {
+                memorySize -= previous.getWeight();
+            }
+            obsolete = removeFromDisk(url);
+        }
+        if (obsolete != null)
+        {
+            obsolete.file.delete();
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear()
+    {
+        List<CacheFile> obsolete;
+        synchronized (this)
+        {
+            memory.clear();
+            memorySize = 0;
+            obsolete = new ArrayList<CacheFile>(disk.values());
+            disk.clear();
+            diskSize = 0;
+            ++generation;
+        }
+        delete(obsolete);
+    }
+
+    /**
+     * @return number of cached entries, in memory and on disk
+     */
+    public synchronized int size()
+    {
+        return memory.size() + disk.size();
+    }
+
+    /* must be called with the lock held, returns the entries evicted from memory */
+    private List<Map.Entry<String,Entry>> putInMemory(String url, Entry entry)
+    {
+        Entry previous = memory.put(url, entry);
+        if (previous != null)
+        {
+            memorySize -= previous.getWeight();
+        }
+        memorySize += entry.getWeight();
+        List<Map.Entry<String,Entry>> evicted = null;
+        Iterator<Map.Entry<String,Entry>> it = memory.entrySet().iterator();
+        while (memorySize > maxMemorySize && it.hasNext())
+        {
+            Map.Entry<String,Entry> eldest = it.next();
+            if (evicted == null)
+            {
+                evicted = new ArrayList<Map.Entry<String,Entry>>();
+            }
+            evicted.add(new AbstractMap.SimpleImmutableEntry<String,Entry>(eldest));
+            it.remove();
+            memorySize -= eldest.getValue().getWeight();
+        }
+        return evicted;
+    }
+
+    /* must be called with the lock held, the returned file still has to be deleted */
+    private CacheFile removeFromDisk(String url)
+    {
+        CacheFile file = disk.remove(url);
+        if (file != null)
+        {
+            diskSize -= file.length;
+        }
+        return file;
+    }
+
+    /* must be called without the lock held: writes evicted entries to disk, then registers them */
+    private void overflow(List<Map.Entry<String,Entry>> evicted, long gen)
+    {
+        if (evicted == null || directory == null)
+        {
+            return;
+        }
+        for (Map.Entry<String,Entry> entry : evicted)
+        {
+            String url = entry.getKey();
+            CacheFile file = writeEntry(url, entry.getValue());
+            if (file == null)
+            {
+                continue;
+            }
+            List<CacheFile> obsolete = new ArrayList<CacheFile>();
+            synchronized (this)
+            {
+                if (gen != generation || memory.containsKey(url))
+                {
+                    /* cache was cleared, or entry was cached again meanwhile */
+                    obsolete.add(file);
+                }
+                else
+                {
+                    CacheFile previous = disk.put(url, file);
+                    if (previous != null)
+                    {
+                        diskSize -= previous.length;
+                        obsolete.add(previous);
+                    }
+                    diskSize += file.length;
+                    Iterator<CacheFile> it = disk.values().iterator();
+                    while (diskSize > maxDiskSize && it.hasNext())
+                    {
+                        CacheFile eldest = it.next();
+                        it.remove();
+                        diskSize -= eldest.length;
+                        obsolete.add(eldest);
+                    }
+                }
+            }
+            delete(obsolete);
+        }
+    }
+
+    private static void delete(List<CacheFile> files)
+    {
+        for (CacheFile file : files)
+        {
+            file.file.delete();
+        }
+    }
+
+    private CacheFile writeEntry(String url, Entry entry)
+    {
+        if (entry.getWeight() > maxDiskSize)
+        {
+            return null;
+        }
+        File file = new File(directory, Integer.toHexString(url.hashCode()) + "-" + fileCounter.getAndIncrement() + FILE_SUFFIX);
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeUTF(entry.getETag() == null ? "" : entry.getETag());
+            out.writeLong(entry.getLastModified());
+            out.writeLong(entry.getExpiration());
+            byte[] content = entry.getContent().getBytes("UTF-8");
+            out.writeInt(content.length);
+            out.write(content);
+        }
+        catch (IOException ioe)
+        {
+            LOG.error("could not write http cache file {}", file, ioe);
+            file.delete();
+            return null;
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException ioe)
+                {
+                    LOG.error("could not close http cache file {}", file, ioe);
+                }
+            }
+        }
+        return new CacheFile(file, file.length());
+    }
+
+    private Entry readEntry(File file)
+    {
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            String etag = in.readUTF();
+            long lastModified = in.readLong();
+            long expiration = in.readLong();
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            return new Entry(new String(content, "UTF-8"), etag.length() == 0 ? null : etag, lastModified, expiration);
+        }
+        catch (IOException ioe)
+        {
+            LOG.error("could not read http cache file {}", file, ioe);
+            return null;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException ioe)
+                {
+                    LOG.error("could not close http cache file {}", file, ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the expiration date of a response from its headers.
+     * @param uc URL connection, whose response has been received
+     * @param now current time
+     * @return the expiration timestamp (which is <code>now</code> for responses
+     *         which must be revalidated), or -1 if the response must not be cached
+     */
+    public static long getExpiration(URLConnection uc, long now)
+    {
+        String vary = uc.getHeaderField("Vary");
+        if (vary != null && !"Accept-Encoding".equalsIgnoreCase(vary.trim()))
+        {
+            return -1;
+        }
+        boolean validatable = uc.getHeaderField("ETag") != null || uc.getLastModified() > 0;
+        String cacheControl = uc.getHeaderField("Cache-Control");
+        long maxAge = -1;
+        if (cacheControl != null)
+        {
+            for (String directive : cacheControl.toLowerCase().split(","))
+            {
+                directive = directive.trim();
+                if (directive.equals("no-store") || directive.startsWith("private"))
+                {
+                    return -1;
+                }
+                else if (directive.startsWith("no-cache"))
+                {
+                    return validatable ? now : -1;
+                }
+                else if (directive.startsWith("s-maxage="))
+                {
+                    maxAge = parseSeconds(directive.substring(9), maxAge);
+                    /* s-maxage has precedence for shared caches */
+                    break;
+                }
+                else if (directive.startsWith("max-age="))
+                {
+                    maxAge = parseSeconds(directive.substring(8), maxAge);
+                }
+            }
+        }
+        if (maxAge >= 0)
+        {
+            long age = parseSeconds(uc.getHeaderField("Age"), 0);
+            return now + Math.max(0, maxAge - age) * 1000l;
+        }
+        if (uc.getHeaderField("Expires") != null)
+        {
+            /* invalid dates mean "already expired" */
+            return Math.max(now, uc.getExpiration());
+        }
+        return validatable ? now : -1;
+    }
+
+    private static long parseSeconds(String value, long alternate)
+    {
+        if (value == null)
+        {
+            return alternate;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException nfe)
+        {
+            return alternate;
+        }
+    }
+
+    /* overflow file, with its length */
+    private static class CacheFile
+    {
+        private final File file;
+        private final long length;
+
+        private CacheFile(File file, long length)
+        {
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Cached response.
+     */
+    public static class Entry
+    {
+        private final String content;
+        private final String etag;
+        private final long lastModified;
+        private final long expiration;
+
+        /**
+         * @param content response body
+         * @param etag ETag header, or <code>null</code>
+         * @param lastModified Last-Modified header, or zero
+         * @param expiration expiration timestamp
+         */
+        public Entry(String content, String etag, long lastModified, long expiration)
+        {
+            this.content = content;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiration = expiration;
+        }
+
+        public String getContent()
+        {
+            return content;
+        }
+
+        public String getETag()
+        {
+            return etag;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+        public long getExpiration()
+        {
+            return expiration;
+        }
+
+        /**
+         * @param now current time
+         * @return whether this entry can be used without revalidation
+         */
+        public boolean isFresh(long now)
+        {
+            return now < expiration;
+        }
+
+        /**
+         * @return whether this entry can be revalidated with a conditional request
+         */
+        public boolean isValidatable()
+        {
+            return etag != null || lastModified > 0;
+        }
+
+        /**
+         * @param newExpiration new expiration timestamp
+         * @return a copy of this entry with the new expiration
+         */
+        public Entry revalidated(long newExpiration)
+        {
+            return new Entry(content, etag, lastModified, newExpiration);
+        }
+
+        /**
+         * @return approximate memory footprint
+         */
+        protected long getWeight()
+        {
+            return 64 + 2l * content.length();
+        }
+    }
+}
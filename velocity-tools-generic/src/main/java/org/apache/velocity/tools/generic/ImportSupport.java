@@ -25,16 +25,35 @@ import org.apache.velocity.tools.ConversionUtils;
 import org.apache.velocity.tools.Scope;
 import org.apache.velocity.tools.config.InvalidScope;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * <p>Provides methods to import arbitrary local or remote resources as strings, generic version.</p>
@@ -48,6 +67,8 @@ import java.net.URLConnection;
 @InvalidScope({Scope.APPLICATION, Scope.SESSION, Scope.REQUEST}) /* this tool is not meant to be used directly*/
 public class ImportSupport extends SafeConfig
 {
+    private static final Logger LOG = LoggerFactory.getLogger(ImportSupport.class);
+
     protected static final String VALID_SCHEME_CHARS =
         "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789+.-";
 
@@ -59,6 +80,84 @@ public class ImportSupport extends SafeConfig
      */
     public static final String URL_KEY = "url";
 
+    /** Configuration key for remote URLs connection timeout, in milliseconds
+     */
+    public static final String CONNECT_TIMEOUT_KEY = "connectTimeout";
+
+    /** Configuration key for remote URLs read timeout, in milliseconds
+     */
+    public static final String READ_TIMEOUT_KEY = "readTimeout";
+
+    /** Configuration key for the maximum number of bytes read from a remote URL
+     */
+    public static final String MAX_CONTENT_LENGTH_KEY = "maxContentLength";
+
+    /** Configuration key enabling the application-wide cache of HTTP responses
+     */
+    public static final String HTTP_CACHE_KEY = "httpCache";
+
+    /** Configuration key for the maximum size of the HTTP responses cached in memory, in bytes
+     */
+    public static final String HTTP_CACHE_SIZE_KEY = "httpCacheSize";
+
+    /** Configuration key for the HTTP cache overflow directory
+     */
+    public static final String HTTP_CACHE_DIRECTORY_KEY = "httpCacheDirectory";
+
+    /** Configuration key for the maximum size of the HTTP cache overflow directory, in bytes
+     */
+    public static final String HTTP_CACHE_DISK_SIZE_KEY = "httpCacheDiskSize";
+
+    /** Default maximum size of the HTTP responses cached in memory, in bytes
+     */
+    public static final long DEFAULT_HTTP_CACHE_SIZE = 4l * 1024 * 1024;
+
+    /** Default maximum size of the HTTP cache overflow directory, in bytes
+     */
+    public static final long DEFAULT_HTTP_CACHE_DISK_SIZE = 64l * 1024 * 1024;
+
+    /** Configuration key for the number of threads used to prefetch remote URLs
+     * (only taken into account by the first configured instance)
+     */
+    public static final String PREFETCH_THREADS_KEY = "prefetchThreads";
+
+    /** Configuration key for the prefetch deadline, in milliseconds
+     */
+    public static final String PREFETCH_TIMEOUT_KEY = "prefetchTimeout";
+
+    /** Default number of threads used to prefetch remote URLs
+     */
+    public static final int DEFAULT_PREFETCH_THREADS = 8;
+
+    /** Default prefetch deadline, in milliseconds
+     */
+    public static final int DEFAULT_PREFETCH_TIMEOUT = 10000;
+
+    /** Default remote URLs connection timeout, in milliseconds
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    /** Default remote URLs read timeout, in milliseconds
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    /** Size of the buffers used to read resources
+     */
+    protected static final int BUFFER_SIZE = 8192;
+
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private long maxContentLength = 0;
+    private HttpResponseCache httpCache = null;
+
+    private static ExecutorService prefetchExecutor = null;
+    private static int prefetchExecutorThreads = 0;
+    private int prefetchThreads = DEFAULT_PREFETCH_THREADS;
+    private int prefetchTimeout = DEFAULT_PREFETCH_TIMEOUT;
+    private boolean prefetchEnabled = true;
+    private final ConcurrentMap<String,Future<String>> prefetched = new ConcurrentHashMap<String,Future<String>>();
+    private volatile long prefetchDeadline = 0;
+
     //*********************************************************************
     // URL importation logic
 
@@ -89,6 +188,95 @@ public class ImportSupport extends SafeConfig
     protected void configure(ValueParser values)
     {
         super.configure(values);
+        setConnectTimeout(values.getInt(CONNECT_TIMEOUT_KEY, DEFAULT_CONNECT_TIMEOUT));
+        setReadTimeout(values.getInt(READ_TIMEOUT_KEY, DEFAULT_READ_TIMEOUT));
+        Number maxLength = values.getNumber(MAX_CONTENT_LENGTH_KEY);
+        if (maxLength != null)
+        {
+            setMaxContentLength(maxLength.longValue());
+        }
+        prefetchThreads = Math.max(1, values.getInt(PREFETCH_THREADS_KEY, DEFAULT_PREFETCH_THREADS));
+        prefetchTimeout = Math.max(0, values.getInt(PREFETCH_TIMEOUT_KEY, DEFAULT_PREFETCH_TIMEOUT));
+        /* prefetching state and deadline are per request */
+        String scope = values.getString("scope");
+        prefetchEnabled = scope == null || Scope.REQUEST.equals(scope);
+        if (values.getBoolean(HTTP_CACHE_KEY, false))
+        {
+            long size = values.getNumber(HTTP_CACHE_SIZE_KEY, DEFAULT_HTTP_CACHE_SIZE).longValue();
+            String directory = values.getString(HTTP_CACHE_DIRECTORY_KEY);
+            long diskSize = values.getNumber(HTTP_CACHE_DISK_SIZE_KEY, DEFAULT_HTTP_CACHE_DISK_SIZE).longValue();
+            setHttpCache(HttpResponseCache.getInstance(size, directory == null ? null : new File(directory), diskSize));
+        }
+    }
+
+    /**
+     * Sets the cache used for HTTP responses
+     * @param httpCache HTTP responses cache, or <code>null</code> to disable caching
+     */
+    public void setHttpCache(HttpResponseCache httpCache)
+    {
+        this.httpCache = httpCache;
+    }
+
+    /**
+     * @return the cache used for HTTP responses, if any
+     */
+    public HttpResponseCache getHttpCache()
+    {
+        return httpCache;
+    }
+
+    /**
+     * Sets the connection timeout for remote URLs
+     * @param connectTimeout timeout in milliseconds, zero meaning no timeout
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = Math.max(0, connectTimeout);
+    }
+
+    /**
+     * @return the connection timeout for remote URLs, in milliseconds
+     */
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the read timeout for remote URLs
+     * @param readTimeout timeout in milliseconds, zero meaning no timeout
+     */
+    public void setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = Math.max(0, readTimeout);
+    }
+
+    /**
+     * @return the read timeout for remote URLs, in milliseconds
+     */
+    public int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    /**
+     * Sets the maximum number of bytes read from a remote URL, compared with
+     * the <code>Content-Length</code> header when present and with the number
+     * of bytes actually received otherwise; reading past this limit will throw an IOException.
+     * @param maxContentLength maximum number of bytes, zero or less meaning no limit
+     */
+    public void setMaxContentLength(long maxContentLength)
+    {
+        this.maxContentLength = Math.max(0, maxContentLength);
+    }
+
+    /**
+     * @return the maximum number of bytes read from a remote URL, zero meaning no limit
+     */
+    public long getMaxContentLength()
+    {
+        return maxContentLength;
     }
 
     @Override
@@ -106,6 +294,11 @@ public class ImportSupport extends SafeConfig
     public String acquireString(String url) throws IOException
     {
         getLog().debug("acquire URL {}", url);
+        Future<String> future = prefetched.remove(url);
+        if (future != null)
+        {
+            return getPrefetched(url, future);
+        }
         if (isRemoteURL(url))
         {
             return acquireRemoteURLString(url);
@@ -124,20 +317,26 @@ public class ImportSupport extends SafeConfig
      */
     protected String acquireRemoteURLString(String url) throws IOException
     {
+        if (httpCache != null && isHttpURL(url))
+        {
+            return acquireCachedURLString(url);
+        }
+
         // delegate to our peer
-        BufferedReader r = null;
+        Reader r = null;
         try
         {
-            r = new BufferedReader(acquireRemoteURLReader(url));
-            StringBuilder sb = new StringBuilder();
-            int i;
-            // under JIT, testing seems to show this simple loop is as fast
-            // as any of the alternatives
-            while ((i = r.read()) != -1)
+            r = acquireRemoteURLReader(url);
+            if (r == null)
             {
-                sb.append((char)i);
+                return null;
+            }
+            int sizeHint = -1;
+            if (r instanceof SafeClosingHttpURLConnectionReader)
+            {
+                sizeHint = ((SafeClosingHttpURLConnectionReader)r).getContentLength();
             }
-            return sb.toString();
+            return readString(r, sizeHint);
         }
         finally
         {
@@ -155,6 +354,46 @@ public class ImportSupport extends SafeConfig
         }
     }
 
+    /**
+     * Reads the whole content of a reader, using a buffer rather than
+     * reading one character at a time.
+     * @param reader the reader
+     * @param sizeHint expected number of characters, or -1 if unknown
+     * @return the content as string
+     * @throws IOException
+     */
+    protected static String readString(Reader reader, int sizeHint) throws IOException
+    {
+        StringBuilder sb = new StringBuilder(sizeHint > 0 ? Math.min(sizeHint, 1 << 20) : BUFFER_SIZE);
+        char[] buffer = new char[BUFFER_SIZE];
+        int n;
+        while ((n = reader.read(buffer)) != -1)
+        {
+            sb.append(buffer, 0, n);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Copies the whole content of a reader towards a writer.
+     * @param reader the reader
+     * @param writer the writer
+     * @return the number of copied characters
+     * @throws IOException
+     */
+    protected static long copy(Reader reader, Writer writer) throws IOException
+    {
+        char[] buffer = new char[BUFFER_SIZE];
+        long count = 0;
+        int n;
+        while ((n = reader.read(buffer)) != -1)
+        {
+            writer.write(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+
     /**
      * Aquire the content of a local URL.
      * @param url local URL
@@ -176,6 +415,12 @@ public class ImportSupport extends SafeConfig
     public Reader acquireReader(String url) throws IOException
     {
         getLog().debug("acquire URL {}", url);
+        Future<String> future = prefetched.remove(url);
+        if (future != null)
+        {
+            String content = getPrefetched(url, future);
+            return content == null ? null : new StringReader(content);
+        }
         if (isRemoteURL(url))
         {
             return acquireRemoteURLReader(url);
@@ -186,6 +431,190 @@ public class ImportSupport extends SafeConfig
         }
     }
 
+    /**
+     * Starts fetching the specified remote URLs concurrently, on a bounded thread pool
+     * shared by all instances. Subsequent calls to {@link #acquireString(String)}
+     * and {@link #acquireReader(String)} for those URLs will wait for the
+     * corresponding result, but no longer than the prefetch deadline, which
+     * starts with the first call to this method since all prefetched URLs were acquired.
+     * Each prefetched result is only used once.
+     * Prefetching is only available to request-scoped (or unscoped) instances:
+     * other instances ignore this method.
+     * @param urls remote URLs to prefetch
+     */
+    public synchronized void prefetch(Collection<String> urls)
+    {
+        if (!prefetchEnabled)
+        {
+            getLog().warn("prefetching is only available in request scope, ignoring prefetch of {}", urls);
+            return;
+        }
+        if (prefetched.isEmpty())
+        {
+            prefetchDeadline = System.currentTimeMillis() + prefetchTimeout;
+        }
+        ExecutorService executor = getPrefetchExecutor(prefetchThreads);
+        for (final String url : urls)
+        {
+            if (url == null || !isRemoteURL(url) || prefetched.containsKey(url))
+            {
+                continue;
+            }
+            try
+            {
+                prefetched.put(url, executor.submit(new Callable<String>()
+                {
+                    public String call() throws Exception
+                    {
+                        return acquireRemoteURLString(url);
+                    }
+                }));
+            }
+            catch (RejectedExecutionException ree)
+            {
+                /* the URL will be fetched synchronously */
+                getLog().debug("prefetch queue is full, could not prefetch {}", url);
+            }
+        }
+    }
+
+    /**
+     * Waits for the result of a prefetched URL, until the prefetch deadline.
+     * Past the deadline, the prefetch is cancelled and an exception is thrown.
+     * @param url prefetched URL
+     * @param future prefetch result
+     * @return the URL resource as string
+     * @throws IOException
+     */
+    protected String getPrefetched(String url, Future<String> future) throws IOException
+    {
+        try
+        {
+            long remaining = prefetchDeadline - System.currentTimeMillis();
+            return future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException te)
+        {
+            future.cancel(true);
+            throw new IOException("prefetch deadline exceeded for URL \"" + url + "\"");
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException)cause;
+            }
+            throw new IOException("Problem prefetching the remote URL \"" + url + "\"", cause);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for URL \"" + url + "\"", ie);
+        }
+    }
+
+    /**
+     * Returns the executor used for prefetching, created upon first use.
+     * The executor is shared by all instances, so only the number of threads
+     * requested by its first user is taken into account.
+     * @param threads number of threads
+     * @return prefetch executor
+     */
+    protected static synchronized ExecutorService getPrefetchExecutor(int threads)
+    {
+        if (prefetchExecutor == null)
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(threads * 32), new ThreadFactory()
+                {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "velocity-tools-prefetch-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true);
+            prefetchExecutor = executor;
+            prefetchExecutorThreads = threads;
+        }
+        else if (threads != prefetchExecutorThreads)
+        {
+            LOG.warn("prefetch executor already running with {} threads, ignoring requested size of {} threads", prefetchExecutorThreads, threads);
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Shuts down the prefetch executor, if any, cancelling pending prefetches.
+     * It is meant to be called when the application stops (VelocityViewServlet
+     * and VelocityViewFilter do it when destroyed); a new executor is created
+     * upon next use.
+     */
+    public static synchronized void shutdownPrefetchExecutor()
+    {
+        if (prefetchExecutor != null)
+        {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+        }
+    }
+
+    /**
+     * Writes the content of an URL directly into the provided writer,
+     * without building an intermediate string.
+     * @param url the URL to read
+     * @param writer the target writer
+     * @return whether the URL could be read
+     * @throws IOException
+     */
+    public boolean acquireInto(String url, Writer writer) throws IOException
+    {
+        Reader reader = acquireReader(url);
+        if (reader == null)
+        {
+            return false;
+        }
+        try
+        {
+            copy(reader, writer);
+            return true;
+        }
+        finally
+        {
+            try
+            {
+                reader.close();
+            }
+            catch (IOException ioe)
+            {
+                getLog().error("Could not close reader.", ioe);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection towards a remote URL, with configured timeouts.
+     * @param url remote URL
+     * @return URL connection
+     * @throws IOException
+     */
+    protected URLConnection openRemoteConnection(String url) throws IOException
+    {
+        URL u = ConversionUtils.toURL(url);
+        if (u == null)
+        {
+            throw new IOException("invalid URL: " + url);
+        }
+        URLConnection uc = u.openConnection();
+        uc.setConnectTimeout(connectTimeout);
+        uc.setReadTimeout(readTimeout);
+        return uc;
+    }
+
     /**
      * Acquire a reader to a remote URL
      * @param url the URL to read
@@ -195,6 +624,11 @@ public class ImportSupport extends SafeConfig
      */
     protected Reader acquireRemoteURLReader(String url) throws  IOException
     {
+        if (httpCache != null && isHttpURL(url))
+        {
+            return new StringReader(acquireCachedURLString(url));
+        }
+
         // remote URL
         URLConnection uc = null;
         HttpURLConnection huc = null;
@@ -203,8 +637,7 @@ public class ImportSupport extends SafeConfig
         try
         {
             // handle remote URLs ourselves, using java.net.URL
-            URL u = ConversionUtils.toURL(url);
-            uc = u.openConnection();
+            uc = openRemoteConnection(url);
             i = uc.getInputStream();
 
             // check response code for HTTP URLs, per spec,
@@ -220,32 +653,7 @@ public class ImportSupport extends SafeConfig
             }
 
             // okay, we've got a stream; encode it appropriately
-            Reader r = null;
-            String charSet;
-
-            // charSet extracted according to RFC 2045, section 5.1
-            String contentType = uc.getContentType();
-            if (contentType != null)
-            {
-                charSet = ImportSupport.getContentTypeAttribute(contentType, "charset");
-                if (charSet == null)
-                {
-                    charSet = RuntimeConstants.ENCODING_DEFAULT;
-                }
-            }
-            else
-            {
-                charSet = RuntimeConstants.ENCODING_DEFAULT;
-            }
-
-            try
-            {
-                r = new InputStreamReader(i, charSet);
-            }
-            catch (UnsupportedEncodingException ueex)
-            {
-                r = new InputStreamReader(i, RuntimeConstants.ENCODING_DEFAULT);
-            }
+            Reader r = createReader(uc, i, url);
 
             if (huc == null)
             {
@@ -300,6 +708,148 @@ public class ImportSupport extends SafeConfig
         }
     }
 
+    /**
+     * Creates a reader on the stream of a remote URL, decoded according
+     * to its content type and bounded by the maximum content length.
+     * @param uc URL connection
+     * @param i URL connection input stream
+     * @param url URL
+     * @return reader
+     * @throws IOException
+     */
+    protected Reader createReader(URLConnection uc, InputStream i, String url) throws IOException
+    {
+        Reader r = null;
+        String charSet;
+
+        long maxLength = maxContentLength;
+        if (maxLength > 0)
+        {
+            long contentLength = uc.getContentLengthLong();
+            if (contentLength > maxLength)
+            {
+                throw new IOException("content length " + contentLength + " exceeds the maximum of " + maxLength);
+            }
+            i = new BoundedInputStream(i, maxLength, url);
+        }
+
+        // charSet extracted according to RFC 2045, section 5.1
+        String contentType = uc.getContentType();
+        if (contentType != null)
+        {
+            charSet = ImportSupport.getContentTypeAttribute(contentType, "charset");
+            if (charSet == null)
+            {
+                charSet = RuntimeConstants.ENCODING_DEFAULT;
+            }
+        }
+        else
+        {
+            charSet = RuntimeConstants.ENCODING_DEFAULT;
+        }
+
+        try
+        {
+            r = new InputStreamReader(i, charSet);
+        }
+        catch (UnsupportedEncodingException ueex)
+        {
+            r = new InputStreamReader(i, RuntimeConstants.ENCODING_DEFAULT);
+        }
+        return r;
+    }
+
+    /**
+     * Acquire the content of an HTTP URL through the HTTP responses cache.
+     * @param url HTTP URL
+     * @return the URL resource as string
+     * @throws IOException
+     */
+    protected String acquireCachedURLString(String url) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        HttpResponseCache.Entry cached = httpCache.get(url);
+        if (cached != null && cached.isFresh(now))
+        {
+            getLog().debug("fresh cached content for {}", url);
+            return cached.getContent();
+        }
+        HttpURLConnection huc = null;
+        InputStream i = null;
+        try
+        {
+            huc = (HttpURLConnection)openRemoteConnection(url);
+            if (cached != null)
+            {
+                if (cached.getETag() != null)
+                {
+                    huc.setRequestProperty("If-None-Match", cached.getETag());
+                }
+                if (cached.getLastModified() > 0)
+                {
+                    huc.setIfModifiedSince(cached.getLastModified());
+                }
+            }
+            int status = huc.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null)
+            {
+                getLog().debug("revalidated cached content for {}", url);
+                i = huc.getInputStream();
+                /* 304 responses may omit validators, which are still the cached ones */
+                long expiration = Math.max(now, HttpResponseCache.getExpiration(huc, now));
+                httpCache.put(url, cached.revalidated(expiration));
+                return cached.getContent();
+            }
+            if (status < 200 || status > 299)
+            {
+                throw new IOException(status + " " + url);
+            }
+            i = huc.getInputStream();
+            String content = readString(createReader(huc, i, url), huc.getContentLength());
+            long expiration = HttpResponseCache.getExpiration(huc, now);
+            if (expiration == -1)
+            {
+                httpCache.remove(url);
+            }
+            else
+            {
+                httpCache.put(url, new HttpResponseCache.Entry(content, huc.getHeaderField("ETag"), huc.getLastModified(), expiration));
+            }
+            return content;
+        }
+        catch (IOException ex)
+        {
+            if (huc != null)
+            {
+                huc.disconnect();
+            }
+            throw new IOException("Problem accessing the remote URL \""
+                + url + "\". " + ex, ex);
+        }
+        catch (RuntimeException ex)
+        {
+            if (huc != null)
+            {
+                huc.disconnect();
+            }
+            throw new IOException("Problem accessing the remote URL \"" + url + "\" :" + ex.getMessage(), ex);
+        }
+        finally
+        {
+            if (i != null)
+            {
+                try
+                {
+                    i.close();
+                }
+                catch (IOException ioe)
+                {
+                    getLog().error("Could not close InputStream", ioe);
+                }
+            }
+        }
+    }
+
     /**
      * Acquire a reader to a local URL - non applicable to the generic version of ImportSupport
      * @param url the URL to read
@@ -323,14 +873,30 @@ public class ImportSupport extends SafeConfig
             this.huc = huc;
         }
 
+        /**
+         * @return the content length announced by the server, or -1 if unknown
+         */
+        public int getContentLength()
+        {
+            return huc == null ? -1 : huc.getContentLength();
+        }
+
         public void close() throws IOException
         {
-            if(null != huc)
+            /* closing the stream without disconnecting lets
+             * the underlying keep-alive connection be reused */
+            try
             {
-                huc.disconnect();
+                wrappedReader.close();
+            }
+            catch (IOException ioe)
+            {
+                if (null != huc)
+                {
+                    huc.disconnect();
+                }
+                throw ioe;
             }
-
-            wrappedReader.close();
         }
 
         // Pass-through methods.
@@ -375,6 +941,67 @@ public class ImportSupport extends SafeConfig
         }
     }
 
+    /**
+     * Input stream throwing an IOException whenever more than a maximum
+     * number of bytes are read.
+     */
+    protected static class BoundedInputStream extends FilterInputStream
+    {
+        private final long maxLength;
+        private final String url;
+        private long count = 0;
+
+        BoundedInputStream(InputStream in, long maxLength, String url)
+        {
+            super(in);
+            this.maxLength = maxLength;
+            this.url = url;
+        }
+
+        private void check() throws IOException
+        {
+            if (count > maxLength)
+            {
+                throw new IOException("content of " + url + " exceeds the maximum length of " + maxLength);
+            }
+        }
+
+        public int read() throws IOException
+        {
+            int b = in.read();
+            if (b != -1)
+            {
+                ++count;
+                check();
+            }
+            return b;
+        }
+
+        public int read(byte[] buf, int off, int len) throws IOException
+        {
+            int n = in.read(buf, off, len);
+            if (n > 0)
+            {
+                count += n;
+                check();
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long skipped = in.skip(n);
+            count += skipped;
+            check();
+            return skipped;
+        }
+
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+
     //*********************************************************************
     // Public utility methods
 
@@ -389,6 +1016,18 @@ public class ImportSupport extends SafeConfig
         return getProtocol(url) != null;
     }
 
+    /**
+     * Returns whether an URL is an HTTP or HTTPS URL
+     *
+     * @param url the url to check out
+     * @return wether the URL is an HTTP URL
+     */
+    public static boolean isHttpURL(String url)
+    {
+        String protocol = getProtocol(url);
+        return "http".equalsIgnoreCase(protocol) || "https".equalsIgnoreCase(protocol);
+    }
+
     /**
      * Returns protocol, or null for a local URL
      *
@@ -491,19 +1130,17 @@ public class ImportSupport extends SafeConfig
         String ret = null;
         try
         {
-            Reader rawReader = getResourceReader(resource);
-            if (rawReader != null)
+            Reader reader = getResourceReader(resource);
+            if (reader != null)
             {
-                BufferedReader reader = new BufferedReader(rawReader);
-                StringBuilder sb = new StringBuilder();
-                int i;
-                // under JIT, testing seems to show this simple loop is as fast
-                // as any of the alternatives
-                while ((i = reader.read()) != -1)
+                try
                 {
-                    sb.append((char) i);
+                    ret = readString(reader, -1);
+                }
+                finally
+                {
+                    reader.close();
                 }
-                ret = sb.toString();
             }
         }
         catch (IOException ioe)
@@ -524,42 +1161,89 @@ public class ImportSupport extends SafeConfig
     public Reader getResourceReader(String resource)
     {
         getLog().debug("get resource {}", resource);
-        URL url = null;
+        URL url = getResourceURL(resource);
+        return url == null ? null : getResourceReader(url);
+    }
+
+    /**
+     * Get a reader of a local resource URL, as returned by {@link #getResourceURL(String)}.
+     * @param url the URL of the resource to read
+     * @return a reader of the resource
+     */
+    public Reader getResourceReader(URL url)
+    {
         Reader reader = null;
         try
+        {
+            URLConnection uc = url.openConnection();
+            InputStream is = uc.getInputStream();
+            String charSet;
+            // charSet extracted according to RFC 2045, section 5.1
+            String contentType = uc.getContentType();
+            if (contentType != null)
+            {
+                charSet = ImportSupport.getContentTypeAttribute(contentType, "charset");
+                if (charSet == null)
+                {
+                    charSet = RuntimeConstants.ENCODING_DEFAULT;
+                }
+            }
+            else
+            {
+                charSet = RuntimeConstants.ENCODING_DEFAULT;
+            }
+            reader = new InputStreamReader(is, charSet);
+        }
+        catch (Exception e)
+        {
+            getLog().error("could not get resource {}", url, e);
+        }
+        return reader;
+    }
+
+    /**
+     * Get the URL of a local resource, first trying with a file (or a webapp resource for the view flavor)
+     * then with a classpath entry.
+     * @param resource the resource
+     * @return the URL of the resource, or <code>null</code> if not found
+     */
+    public URL getResourceURL(String resource)
+    {
+        URL url = null;
+        try
         {
             url = getFileResource(resource);
             if (url == null)
             {
                 url = getClasspathResource(resource);
             }
-            if (url != null)
+        }
+        catch (Exception e)
+        {
+            getLog().error("could not get resource {}", resource, e);
+        }
+        return url;
+    }
+
+    /**
+     * Returns the last modification date of a local resource, if available.
+     * @param url resource URL
+     * @return last modification timestamp, or zero if unknown
+     */
+    public static long getLastModified(URL url)
+    {
+        try
+        {
+            if ("file".equals(url.getProtocol()))
             {
-                URLConnection uc = url.openConnection();
-                InputStream is = uc.getInputStream();
-                String charSet;
-                // charSet extracted according to RFC 2045, section 5.1
-                String contentType = uc.getContentType();
-                if (contentType != null)
-                {
-                    charSet = ImportSupport.getContentTypeAttribute(contentType, "charset");
-                    if (charSet == null)
-                    {
-                        charSet = RuntimeConstants.ENCODING_DEFAULT;
-                    }
-                }
-                else
-                {
-                    charSet = RuntimeConstants.ENCODING_DEFAULT;
-                }
-                reader = new InputStreamReader(is, charSet);
+                return new File(url.toURI()).lastModified();
             }
+            return url.openConnection().getLastModified();
         }
         catch (Exception e)
         {
-            getLog().error("could not get resource {}", resource, e);
+            return 0;
         }
-        return reader;
     }
 
     /**
@@ -19,6 +19,12 @@ package org.apache.velocity.tools.generic;
  * under the License.
  */
 
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.Renderable;
 import org.apache.velocity.tools.Scope;
 import org.apache.velocity.tools.config.DefaultKey;
 import org.apache.velocity.tools.config.ValidScope;
@@ -28,6 +34,16 @@ import org.apache.velocity.tools.config.ValidScope;
  * <p>Usage: just call $import.read("http://www.foo.com/bleh.jsp?sneh=bar") to insert the contents of the named
  * resource into the template.
  * </p>
+ * <p>For big resources, $import.stream("http://www.foo.com/bleh.txt") will write the content of the
+ * resource directly into the template output, without building an intermediate String.
+ * </p>
+ * <p>When a template imports many remote URLs, $import.prefetch($url1, $url2, ...) will start fetching them
+ * concurrently; subsequent $import.fetch() calls for those URLs will then wait for the corresponding result,
+ * up to the <code>prefetchTimeout</code> deadline (in milliseconds); past this deadline, fetch() gives up on them.
+ * </p>
+ * <p>Remote URLs access can be tuned using the <code>connectTimeout</code>, <code>readTimeout</code> (in milliseconds)
+ * and <code>maxContentLength</code> (in bytes) configuration properties.
+ * </p>
  * <p><pre>
  * Toolbox configuration:
  * &lt;tools&gt;
@@ -116,4 +132,84 @@ public class ImportTool extends SafeConfig
         }
     }
 
+    /**
+     * Starts fetching the supplied remote URLs concurrently, so that
+     * subsequent calls to {@link #fetch(String)} for those URLs
+     * don't wait for each of them in turn.
+     *
+     * @param urls the URLs to prefetch
+     */
+    public void prefetch(Collection<String> urls)
+    {
+        if (urls != null)
+        {
+            importSupport.prefetch(urls);
+        }
+    }
+
+    /**
+     * Starts fetching the supplied remote URLs concurrently.
+     *
+     * @param urls the URLs to prefetch
+     * @see #prefetch(Collection)
+     */
+    public void prefetch(String... urls)
+    {
+        if (urls != null)
+        {
+            importSupport.prefetch(Arrays.asList(urls));
+        }
+    }
+
+    /**
+     * Returns an object which, when rendered, writes the content of the supplied
+     * URL directly into the template output.
+     *
+     * @param url the URL to import
+     * @return a renderable object
+     */
+    public Renderable stream(String url)
+    {
+        if (url == null || url.length() == 0)
+        {
+            return null;
+        }
+        return new StreamedImport(url);
+    }
+
+    /**
+     * Renderable object streaming the content of an URL
+     * towards the template writer.
+     */
+    protected class StreamedImport implements Renderable
+    {
+        private final String url;
+
+        protected StreamedImport(String url)
+        {
+            this.url = url;
+        }
+
+        public boolean render(InternalContextAdapter context, Writer writer)
+        {
+            try
+            {
+                importSupport.acquireInto(url, writer);
+            }
+            catch (Exception ex)
+            {
+                getLog().error("Exception while streaming '{}'", url, ex);
+            }
+            return true;
+        }
+
+        /**
+         * @return the URL content as a string, when used outside of a rendering
+         */
+        public String toString()
+        {
+            return fetch(url);
+        }
+    }
+
 }
@@ -0,0 +1,446 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.beans.BeanInfo;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>JSON serializer, used by {@link JsonTool#stringify(Object)}.</p>
+ * <p>Values are written directly to the output writer, in a single pass:</p>
+ * <ul>
+ *     <li>{@link Map}s, <code>org.json</code> objects and beans (whose properties are
+ *     introspected once per class) are written as JSON objects</li>
+ *     <li>{@link Iterable}s, {@link Iterator}s, {@link Enumeration}s and arrays are written as JSON arrays</li>
+ *     <li>numbers and booleans are written as is (non finite numbers being written as <code>null</code>)</li>
+ *     <li>dates and calendars are written as ISO 8601 UTC strings, like javascript's <code>Date.toJSON()</code></li>
+ *     <li>other JDK classes instances are written as strings</li>
+ * </ul>
+ * <p>Cyclic references are written as <code>null</code>.</p>
+ * <p>In HTML-safe mode, the characters <code>&lt;</code>, <code>&gt;</code>,
+ * <code>&amp;</code> and <code>'</code> are escaped as unicode sequences, so that
+ * the output can be safely included in an HTML <code>&lt;script&gt;</code> element
+ * or in a single-quoted HTML attribute. It is not suitable for double-quoted attributes,
+ * since JSON strings and keys are themselves delimited by double quotes.
+ * The U+2028 and U+2029 line separators are always escaped.</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class JsonSerializer
+{
+    private static final Logger LOG = LoggerFactory.getLogger(JsonSerializer.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final String[] ESCAPES = new String[128];
+
+    static
+    {
+        for (int c = 0; c < 0x20; ++c)
+        {
+            ESCAPES[c] = "\\u00" + HEX[c >> 4] + HEX[c & 0xF];
+        }
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\t'] = "\\t";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\f'] = "\\f";
+        ESCAPES['\r'] = "\\r";
+        ESCAPES['"'] = "\\\"";
+        ESCAPES['\\'] = "\\\\";
+    }
+
+    /* bean properties, by class ; a ClassValue keeps them along with the class,
+     * so that class loaders are not pinned */
+    private static final ClassValue<BeanProperty[]> beanProperties = new ClassValue<BeanProperty[]>()
+    {
+        @Override
+        protected BeanProperty[] computeValue(Class<?> clazz)
+        {
+            return introspect(clazz);
+        }
+    };
+
+    private static final ThreadLocal<SimpleDateFormat> isoFormat = new ThreadLocal<SimpleDateFormat>()
+    {
+        @Override
+        protected SimpleDateFormat initialValue()
+        {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    private final boolean htmlSafe;
+
+    /**
+     * @param htmlSafe whether to escape HTML special characters
+     */
+    public JsonSerializer(boolean htmlSafe)
+    {
+        this.htmlSafe = htmlSafe;
+    }
+
+    /**
+     * @return whether HTML special characters are escaped
+     */
+    public boolean isHtmlSafe()
+    {
+        return htmlSafe;
+    }
+
+    /**
+     * Serializes a value as a string.
+     * @param value value to serialize
+     * @return JSON representation
+     */
+    public String toString(Object value)
+    {
+        StringWriter writer = new StringWriter();
+        try
+        {
+            write(value, writer);
+        }
+        catch (IOException ioe)
+        {
+            /* cannot happen with a StringWriter */
+            throw new RuntimeException(ioe);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Serializes a value towards a writer.
+     * @param value value to serialize
+     * @param writer target writer
+     * @throws IOException if the writer throws
+     */
+    public void write(Object value, Writer writer) throws IOException
+    {
+        write(value, writer, Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>()));
+    }
+
+    protected void write(Object value, Writer writer, Set<Object> ancestors) throws IOException
+    {
+        if (value == null || value == JSONObject.NULL)
+        {
+            writer.write("null");
+        }
+        else if (value instanceof String)
+        {
+            writeString((String)value, writer);
+        }
+        else if (value instanceof Number)
+        {
+            writeNumber((Number)value, writer);
+        }
+        else if (value instanceof Boolean)
+        {
+            writer.write(((Boolean)value).booleanValue() ? "true" : "false");
+        }
+        else if (value instanceof Date)
+        {
+            writeString(isoFormat.get().format((Date)value), writer);
+        }
+        else if (value instanceof Calendar)
+        {
+            writeString(isoFormat.get().format(((Calendar)value).getTime()), writer);
+        }
+        else if (value instanceof CharSequence || value instanceof Character || value instanceof Enum)
+        {
+            writeString(value.toString(), writer);
+        }
+        else if (!ancestors.add(value))
+        {
+            /* cyclic reference */
+            writer.write("null");
+        }
+        else
+        {
+            try
+            {
+                writeComposite(value, writer, ancestors);
+            }
+            finally
+            {
+                ancestors.remove(value);
+            }
+        }
+    }
+
+    protected void writeComposite(Object value, Writer writer, Set<Object> ancestors) throws IOException
+    {
+        if (value instanceof Map)
+        {
+            writer.write('{');
+            boolean first = true;
+            for (Map.Entry entry : (Set<Map.Entry>)((Map)value).entrySet())
+            {
+                first = writeMember(String.valueOf(entry.getKey()), entry.getValue(), first, writer, ancestors);
+            }
+            writer.write('}');
+        }
+        else if (value instanceof JSONObject)
+        {
+            JSONObject object = (JSONObject)value;
+            writer.write('{');
+            boolean first = true;
+            for (String key : object.keySet())
+            {
+                first = writeMember(key, object.opt(key), first, writer, ancestors);
+            }
+            writer.write('}');
+        }
+        else if (value instanceof JsonTool)
+        {
+            write(((JsonTool)value).root(), writer, ancestors);
+        }
+        else if (value instanceof Iterable)
+        {
+            writeArray(((Iterable)value).iterator(), writer, ancestors);
+        }
+        else if (value instanceof Iterator)
+        {
+            writeArray((Iterator)value, writer, ancestors);
+        }
+        else if (value instanceof Enumeration)
+        {
+            writeArray(Collections.list((Enumeration)value).iterator(), writer, ancestors);
+        }
+        else if (value.getClass().isArray())
+        {
+            writer.write('[');
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; ++i)
+            {
+                if (i > 0)
+                {
+                    writer.write(',');
+                }
+                write(Array.get(value, i), writer, ancestors);
+            }
+            writer.write(']');
+        }
+        else if (isJdkClass(value.getClass()))
+        {
+            writeString(value.toString(), writer);
+        }
+        else
+        {
+            writeBean(value, writer, ancestors);
+        }
+    }
+
+    protected void writeArray(Iterator it, Writer writer, Set<Object> ancestors) throws IOException
+    {
+        writer.write('[');
+        boolean first = true;
+        while (it.hasNext())
+        {
+            if (first)
+            {
+                first = false;
+            }
+            else
+            {
+                writer.write(',');
+            }
+            write(it.next(), writer, ancestors);
+        }
+        writer.write(']');
+    }
+
+    protected boolean writeMember(String key, Object value, boolean first, Writer writer, Set<Object> ancestors) throws IOException
+    {
+        if (!first)
+        {
+            writer.write(',');
+        }
+        writeString(key, writer);
+        writer.write(':');
+        write(value, writer, ancestors);
+        return false;
+    }
+
+    protected void writeBean(Object bean, Writer writer, Set<Object> ancestors) throws IOException
+    {
+        Class clazz = bean.getClass();
+        BeanProperty[] properties = beanProperties.get(clazz);
+        writer.write('{');
+        boolean first = true;
+        for (BeanProperty property : properties)
+        {
+            Object value;
+            try
+            {
+                value = property.getter.invoke(bean);
+            }
+            catch (Exception e)
+            {
+                LOG.debug("could not get property {} of {}", property.name, clazz.getName(), e);
+                continue;
+            }
+            first = writeMember(property.name, value, first, writer, ancestors);
+        }
+        writer.write('}');
+    }
+
+    private static BeanProperty[] introspect(Class clazz)
+    {
+        List<BeanProperty> properties = new ArrayList<BeanProperty>();
+        try
+        {
+            BeanInfo info = Introspector.getBeanInfo(clazz, Object.class);
+            for (PropertyDescriptor descriptor : info.getPropertyDescriptors())
+            {
+                Method getter = descriptor.getReadMethod();
+                if (getter != null && Modifier.isPublic(getter.getModifiers()))
+                {
+                    if (!Modifier.isPublic(getter.getDeclaringClass().getModifiers()))
+                    {
+                        getter.setAccessible(true);
+                    }
+                    properties.add(new BeanProperty(descriptor.getName(), getter));
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            LOG.error("could not introspect class {}", clazz.getName(), e);
+        }
+        return properties.toArray(new BeanProperty[properties.size()]);
+    }
+
+    private static boolean isJdkClass(Class clazz)
+    {
+        String name = clazz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.");
+    }
+
+    protected void writeNumber(Number number, Writer writer) throws IOException
+    {
+        if (number instanceof Double || number instanceof Float)
+        {
+            double d = number.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d))
+            {
+                writer.write("null");
+                return;
+            }
+        }
+        else if (!(number instanceof Integer || number instanceof Long || number instanceof Short ||
+                   number instanceof Byte || number instanceof BigInteger || number instanceof BigDecimal))
+        {
+            /* for other number classes, we can't be sure of the toString() format */
+            number = new BigDecimal(number.toString());
+        }
+        writer.write(number.toString());
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string.
+     * @param string string to write
+     * @param writer target writer
+     * @throws IOException if the writer throws
+     */
+    public void writeString(String string, Writer writer) throws IOException
+    {
+        writer.write('"');
+        int length = string.length();
+        int start = 0;
+        for (int i = 0; i < length; ++i)
+        {
+            char c = string.charAt(i);
+            String escape;
+            if (c < 128)
+            {
+                escape = ESCAPES[c];
+                if (escape == null && htmlSafe && (c == '<' || c == '>' || c == '&' || c == '\''))
+                {
+                    escape = c == '<' ? "\\u003c" : c == '>' ? "\\u003e" : c == '&' ? "\\u0026" : "\\u0027";
+                }
+            }
+            else if (c == '\u2028')
+            {
+                escape = "\\u2028";
+            }
+            else if (c == '\u2029')
+            {
+                escape = "\\u2029";
+            }
+            else
+            {
+                escape = null;
+            }
+            if (escape != null)
+            {
+                if (i > start)
+                {
+                    writer.write(string, start, i - start);
+                }
+                writer.write(escape);
+                start = i + 1;
+            }
+        }
+        if (start < length)
+        {
+            writer.write(string, start, length - start);
+        }
+        writer.write('"');
+    }
+
+    private static class BeanProperty
+    {
+        private final String name;
+        private final Method getter;
+
+        private BeanProperty(String name, Method getter)
+        {
+            this.name = name;
+            this.getter = getter;
+        }
+    }
+}
@@ -24,14 +24,23 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.Renderable;
+import org.apache.velocity.tools.BoundedCache;
 import org.apache.velocity.tools.ConversionUtils;
 import org.apache.velocity.tools.XmlUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONPointer;
 import org.json.JSONTokener;
 
 import org.apache.velocity.tools.Scope;
@@ -48,6 +57,9 @@ import org.w3c.dom.Node;
  *         <li>$json.parse(<i>json string</i>)</li>
  *         <li>$json.read(<i>file or classpath resource</i>)</li>
  *         <li>$json.fetch(<i>URL</i>)</li>
+ *         <li>$json.prefetch(<i>URL</i>, <i>URL</i>, ...)</li>
+ *         <li>$json.cursor()</li>
+ *         <li>$json.stringify(<i>object</i>)</li>
  *     </ul>
  * </p>
  * <p>Configuration parameters:</p>
@@ -55,6 +67,10 @@ import org.w3c.dom.Node;
  *     <ul>
  *         <li><code>resource</code>=<i>file or classpath resource</i></li>
  *         <li><code>source</code>=<i>URL</i></li>
+ *         <li><code>lazy</code>=<i>true</i> to only materialize the JSON values which are accessed (see {@link LazyJson})</li>
+ *         <li><code>documentCacheSize</code>=<i>size of the application-wide cache of lazily parsed documents, zero to disable it (defaults to 32)</i></li>
+ *         <li><code>htmlSafe</code>=<i>true</i> to escape HTML special characters in {@link #stringify(Object)} output</li>
+ *         <li><code>documentCacheTTL</code>=<i>time to live of fetched URLs in the documents cache, in seconds, zero to disable their caching (defaults to 60)</i></li>
  *     </ul>
  * </p>
  * <p>
@@ -79,6 +95,57 @@ import org.w3c.dom.Node;
 @InvalidScope(Scope.SESSION)
 public class JsonTool extends ImportSupport implements Iterable
 {
+    /**
+     * Configuration key for lazy parsing
+     */
+    public static final String LAZY_KEY = "lazy";
+
+    /**
+     * Configuration key for the HTML-safe escaping of serialized JSON
+     */
+    public static final String HTML_SAFE_KEY = "htmlSafe";
+
+    /**
+     * Configuration key for the size of the application-wide cache of parsed
+     * documents (zero disables the cache). Since org.json trees are mutable,
+     * only lazily parsed documents, which are immutable, are cached.
+     */
+    public static final String DOCUMENT_CACHE_SIZE_KEY = "documentCacheSize";
+
+    /**
+     * Default size of the parsed documents cache
+     */
+    public static final int DEFAULT_DOCUMENT_CACHE_SIZE = 32;
+
+    /**
+     * Configuration key for the time to live, in seconds, of fetched URLs in the
+     * parsed documents cache (zero disables caching of fetched URLs). Local
+     * resources are reparsed whenever they are modified.
+     */
+    public static final String DOCUMENT_CACHE_TTL_KEY = "documentCacheTTL";
+
+    /**
+     * Default time to live of fetched URLs in the parsed documents cache
+     */
+    public static final int DEFAULT_DOCUMENT_CACHE_TTL = 60;
+
+    /**
+     * Parsed documents caches, by size
+     */
+    private static final ConcurrentMap<Integer,BoundedCache<String,CachedJson>> documentCaches =
+        new ConcurrentHashMap<Integer,BoundedCache<String,CachedJson>>();
+
+    /**
+     * JSON serializers
+     */
+    private static final JsonSerializer SERIALIZER = new JsonSerializer(false);
+    private static final JsonSerializer HTML_SAFE_SERIALIZER = new JsonSerializer(true);
+
+    /**
+     * Compiled JSON pointers cache
+     */
+    private static final BoundedCache<String,JSONPointer> jsonPointers = new BoundedCache<String,JSONPointer>(256);
+
     /**
      * ImportSupport utility which provides underlying i/o
      */
@@ -104,6 +171,36 @@ public class JsonTool extends ImportSupport implements Iterable
      */
     private JSONArray jsonArray = null;
 
+    /**
+     * Whether to use lazy parsing
+     */
+    private boolean lazy = false;
+
+    /**
+     * Lazy object content
+     */
+    private LazyJson.LazyObject lazyObject = null;
+
+    /**
+     * Lazy array content
+     */
+    private LazyJson.LazyArray lazyArray = null;
+
+    /**
+     * Whether serialized JSON is HTML-safe by default
+     */
+    private boolean htmlSafe = false;
+
+    /**
+     * Parsed documents cache
+     */
+    private BoundedCache<String,CachedJson> documentCache = null;
+
+    /**
+     * Time to live of fetched URLs in the parsed documents cache, in milliseconds
+     */
+    private long documentCacheTTL = DEFAULT_DOCUMENT_CACHE_TTL * 1000l;
+
     /**
      * Looks for the "file" parameter and automatically uses
      * {@link #initJSON(String)} to parse the file (searched in filesystem current path and classpath) and set the
@@ -113,6 +210,27 @@ public class JsonTool extends ImportSupport implements Iterable
     {
         super.configure(values);
         initializeImportSupport(values);
+        lazy = values.getBoolean(LAZY_KEY, false);
+        htmlSafe = values.getBoolean(HTML_SAFE_KEY, false);
+        int documentCacheSize = values.getInt(DOCUMENT_CACHE_SIZE_KEY, DEFAULT_DOCUMENT_CACHE_SIZE);
+        if (lazy && documentCacheSize > 0)
+        {
+            documentCache = documentCaches.get(documentCacheSize);
+            if (documentCache == null)
+            {
+                documentCache = new BoundedCache<String,CachedJson>(documentCacheSize);
+                BoundedCache<String,CachedJson> previous = documentCaches.putIfAbsent(documentCacheSize, documentCache);
+                if (previous != null)
+                {
+                    documentCache = previous;
+                }
+            }
+        }
+        else
+        {
+            documentCache = null;
+        }
+        documentCacheTTL = Math.max(0, values.getInt(DOCUMENT_CACHE_TTL_KEY, DEFAULT_DOCUMENT_CACHE_TTL)) * 1000l;
         String resource = values.getString(ImportSupport.RESOURCE_KEY);
         if (resource != null)
         {
@@ -194,13 +312,22 @@ public class JsonTool extends ImportSupport implements Iterable
                     break;
                 }
             }
+            jsonObject = null;
+            jsonArray = null;
+            lazyObject = null;
+            lazyArray = null;
+            if (jsonType == TYPE_UNKNOWN)
+            {
+                String msg = "could not pase JSON: did not find any '{' or '[' in the first " + lookahead + " characters";
+                throw new Exception(msg);
+            }
+            if (lazy)
+            {
+                setLazyRoot(LazyJson.parse(readString(reader, -1)));
+                return;
+            }
             switch (jsonType)
             {
-                case TYPE_UNKNOWN:
-                {
-                    String msg = "could not pase JSON: did not find any '{' or '[' in the first " + lookahead + " characters";
-                    throw new Exception(msg);
-                }
                 case TYPE_OBJECT:
                     jsonArray = null;
                     jsonObject = new JSONObject(new JSONTokener(reader));
@@ -216,6 +343,18 @@ public class JsonTool extends ImportSupport implements Iterable
         }
     }
 
+    /**
+     * Sets the lazily parsed root object or array.
+     * @param root root object or array
+     */
+    protected void setLazyRoot(Object root)
+    {
+        jsonObject = null;
+        jsonArray = null;
+        lazyObject = root instanceof LazyJson.LazyObject ? (LazyJson.LazyObject)root : null;
+        lazyArray = root instanceof LazyJson.LazyArray ? (LazyJson.LazyArray)root : null;
+    }
+
     /**
      * Parses the given JSON string and uses the resulting {@link Document}
      * as the root {@link Node}.
@@ -242,13 +381,35 @@ public class JsonTool extends ImportSupport implements Iterable
     {
         if (resource != null)
         {
+            String key = null;
+            long lastModified = 0;
+            URL url = null;
+            if (documentCache != null)
+            {
+                url = importSupport.getResourceURL(resource);
+                if (url != null)
+                {
+                    key = url.toExternalForm();
+                    lastModified = getLastModified(url);
+                    CachedJson cached = documentCache.get(key);
+                    if (cached != null && cached.lastModified == lastModified)
+                    {
+                        setLazyRoot(cached.root);
+                        return;
+                    }
+                }
+            }
             Reader reader = null;
             try
             {
-                reader = importSupport.getResourceReader(resource);
+                reader = url == null ? importSupport.getResourceReader(resource) : importSupport.getResourceReader(url);
                 if (reader != null)
                 {
                     initJSON(reader);
+                    if (key != null && root() != null)
+                    {
+                        documentCache.put(key, new CachedJson(root(), lastModified, 0));
+                    }
                 }
             }
             catch (Exception e)
@@ -276,6 +437,16 @@ public class JsonTool extends ImportSupport implements Iterable
     {
         if (url != null)
         {
+            boolean cache = documentCache != null && documentCacheTTL > 0;
+            if (cache)
+            {
+                CachedJson cached = documentCache.get(url);
+                if (cached != null && cached.expiration > System.currentTimeMillis())
+                {
+                    setLazyRoot(cached.root);
+                    return;
+                }
+            }
             Reader reader = null;
             try
             {
@@ -283,6 +454,10 @@ public class JsonTool extends ImportSupport implements Iterable
                 if (reader != null)
                 {
                     initJSON(reader);
+                    if (cache && root() != null)
+                    {
+                        documentCache.put(url, new CachedJson(root(), 0, System.currentTimeMillis() + documentCacheTTL));
+                    }
                 }
             }
             catch (Exception e)
@@ -303,12 +478,45 @@ public class JsonTool extends ImportSupport implements Iterable
         }
     }
 
+    /**
+     * Starts fetching the supplied remote URLs concurrently, so that
+     * subsequent calls to {@link #fetch(String)} for those URLs
+     * don't wait for each of them in turn.
+     *
+     * @param urls the URLs to prefetch
+     */
+    public void prefetch(Collection<String> urls)
+    {
+        if (urls != null)
+        {
+            importSupport.prefetch(urls);
+        }
+    }
+
+    /**
+     * Starts fetching the supplied remote URLs concurrently.
+     *
+     * @param urls the URLs to prefetch
+     * @see #prefetch(Collection)
+     */
+    public void prefetch(String... urls)
+    {
+        if (urls != null)
+        {
+            importSupport.prefetch(Arrays.asList(urls));
+        }
+    }
+
     /**
      * Get JSON root object.
      * @return root object or array
      */
     public Object root()
     {
+        if (lazy)
+        {
+            return lazyObject != null ? lazyObject : lazyArray;
+        }
         return jsonObject != null ? jsonObject : jsonArray ;
     }
 
@@ -319,6 +527,10 @@ public class JsonTool extends ImportSupport implements Iterable
      */
     public Object get(int index)
     {
+        if (lazyArray != null)
+        {
+            return lazyArray.get(index);
+        }
         return jsonArray == null ? null : jsonArray.get(index);
     }
 
@@ -329,6 +541,10 @@ public class JsonTool extends ImportSupport implements Iterable
      */
     public Object get(String key)
     {
+        if (lazyObject != null)
+        {
+            return lazyObject.get(key);
+        }
         return jsonObject == null ? null : jsonObject.get(key);
     }
 
@@ -338,6 +554,10 @@ public class JsonTool extends ImportSupport implements Iterable
      */
     public Iterator<String> keys()
     {
+        if (lazyObject != null)
+        {
+            return lazyObject.keys();
+        }
         return jsonObject == null ? null : jsonObject.keys();
     }
 
@@ -347,6 +567,10 @@ public class JsonTool extends ImportSupport implements Iterable
      */
     public Set<String> keySet()
     {
+        if (lazyObject != null)
+        {
+            return lazyObject.keySet();
+        }
         return jsonObject == null ? null : jsonObject.keySet();
     }
 
@@ -357,7 +581,15 @@ public class JsonTool extends ImportSupport implements Iterable
      */
     public Iterator iterator()
     {
-        if (jsonObject != null)
+        if (lazyObject != null)
+        {
+            return lazyObject.keys();
+        }
+        else if (lazyArray != null)
+        {
+            return lazyArray.iterator();
+        }
+        else if (jsonObject != null)
         {
             return jsonObject.keys();
         }
@@ -368,12 +600,30 @@ public class JsonTool extends ImportSupport implements Iterable
         return null;
     }
 
+    /**
+     * Get a cursor over a root array. With lazy parsing, values are materialized
+     * one at a time as the iteration goes on, and are not retained by the root array.
+     * @return iterator, or null if the root object is not an array
+     */
+    public Iterator cursor()
+    {
+        if (lazyArray != null)
+        {
+            return lazyArray.cursor();
+        }
+        return jsonArray == null ? null : jsonArray.iterator();
+    }
+
     /**
      * Get size of root object or array.
      * @return size
      */
     public int length()
     {
+        if (lazy)
+        {
+            return lazyObject == null ? lazyArray == null ? 0 : lazyArray.size() : lazyObject.size();
+        }
         return jsonObject == null ? jsonArray == null ? null : jsonArray.length() : jsonObject.length();
     }
 
@@ -383,6 +633,10 @@ public class JsonTool extends ImportSupport implements Iterable
      */
     public JSONArray names()
     {
+        if (lazyObject != null)
+        {
+            return new JSONArray(lazyObject.keySet());
+        }
         return jsonObject == null ? null : jsonObject.names();
     }
 
@@ -393,7 +647,53 @@ public class JsonTool extends ImportSupport implements Iterable
      */
     public Object query(String jsonPointer)
     {
-        return jsonObject == null ? jsonArray == null ? null : jsonArray.query(jsonPointer) : jsonObject.query(jsonPointer);
+        if (lazy)
+        {
+            return LazyJson.query(root(), jsonPointer);
+        }
+        Object root = root();
+        return root == null || jsonPointer == null ? null : getJSONPointer(jsonPointer).queryFrom(root);
+    }
+
+    /**
+     * Gets a compiled JSON pointer.
+     * @param jsonPointer JSON pointer
+     * @return compiled JSON pointer
+     */
+    protected static JSONPointer getJSONPointer(String jsonPointer)
+    {
+        JSONPointer pointer = jsonPointers.get(jsonPointer);
+        if (pointer == null)
+        {
+            pointer = new JSONPointer(jsonPointer);
+            jsonPointers.put(jsonPointer, pointer);
+        }
+        return pointer;
+    }
+
+    /**
+     * Serializes an object (map, collection, array, bean, number, date...) as JSON.
+     * The returned object writes the JSON directly into the template output.
+     * @param obj object to serialize
+     * @return renderable JSON representation
+     * @see JsonSerializer
+     */
+    public Renderable stringify(Object obj)
+    {
+        return stringify(obj, htmlSafe);
+    }
+
+    /**
+     * Serializes an object as JSON, specifying whether HTML special characters
+     * must be escaped (for inclusion in a <code>&lt;script&gt;</code> element).
+     * @param obj object to serialize
+     * @param htmlSafe whether to escape HTML special characters
+     * @return renderable JSON representation
+     * @see JsonSerializer
+     */
+    public Renderable stringify(Object obj, boolean htmlSafe)
+    {
+        return new SerializedJson(obj, htmlSafe ? HTML_SAFE_SERIALIZER : SERIALIZER);
     }
 
     /**
@@ -402,6 +702,65 @@ public class JsonTool extends ImportSupport implements Iterable
      */
     public String toString()
     {
+        if (lazy)
+        {
+            Object root = root();
+            return root == null ? "null" : root.toString();
+        }
         return jsonObject == null ? jsonArray == null ? "null" : jsonArray.toString() : jsonObject.toString();
     }
+
+    /**
+     * Cached lazily parsed document.
+     */
+    private static class CachedJson
+    {
+        private final Object root;
+        private final long lastModified;
+        private final long expiration;
+
+        private CachedJson(Object root, long lastModified, long expiration)
+        {
+            this.root = root;
+            this.lastModified = lastModified;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * Renderable object serializing a value as JSON
+     * towards the template writer.
+     */
+    protected class SerializedJson implements Renderable
+    {
+        private final Object value;
+        private final JsonSerializer serializer;
+
+        protected SerializedJson(Object value, JsonSerializer serializer)
+        {
+            this.value = value;
+            this.serializer = serializer;
+        }
+
+        public boolean render(InternalContextAdapter context, Writer writer)
+        {
+            try
+            {
+                serializer.write(value, writer);
+            }
+            catch (Exception e)
+            {
+                getLog().error("could not serialize value as JSON", e);
+            }
+            return true;
+        }
+
+        /**
+         * @return the JSON representation as a string, when used outside of a rendering
+         */
+        public String toString()
+        {
+            return serializer.toString(value);
+        }
+    }
 }
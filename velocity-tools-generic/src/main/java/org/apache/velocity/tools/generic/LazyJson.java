@@ -0,0 +1,695 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import org.apache.velocity.tools.BoundedCache;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>Lazy JSON parser, used by {@link JsonTool} when its <code>lazy</code>
+ * configuration property is true.</p>
+ * <p>Parsing only checks the overall structure of the source. Objects and arrays
+ * index the offsets of their members the first time they are accessed, and
+ * values (strings, numbers, nested objects and arrays) are only materialized
+ * when they are themselves accessed, so that templates which only read a few
+ * fields of a large document don't pay for building the whole tree.</p>
+ * <p>Objects are exposed as read-only {@link Map}s and arrays as read-only
+ * {@link java.util.List}s. Scalar values are the same as the ones of
+ * the <code>org.json</code> library, including {@link JSONObject#NULL}
+ * for <code>null</code>. Syntax errors inside a value are only reported,
+ * as {@link JSONException}s, when this value is accessed.</p>
+ * <p>Lazy objects and arrays are thread-safe.</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class LazyJson
+{
+    private LazyJson() {}
+
+    /**
+     * Parses a JSON source.
+     * @param source JSON source
+     * @return root value: a {@link LazyObject}, a {@link LazyArray}, or a scalar value
+     * @throws JSONException if the source is not structurally valid
+     */
+    public static Object parse(String source)
+    {
+        int end = source.length();
+        int start = skipWhitespace(source, 0, end);
+        if (start == end)
+        {
+            throw new JSONException("empty JSON source");
+        }
+        int valueEnd = skipValue(source, start, end);
+        if (skipWhitespace(source, valueEnd, end) != end)
+        {
+            throw syntaxError("unexpected trailing characters", valueEnd);
+        }
+        return value(source, start, valueEnd);
+    }
+
+    /**
+     * Compiled JSON pointers cache
+     */
+    private static final BoundedCache<String,Pointer> pointers = new BoundedCache<String,Pointer>(256);
+
+    /**
+     * Queries a value using a JSON pointer.
+     * @param root root value
+     * @param pointer JSON pointer, either in string or in URI fragment representation
+     * @return found value, or null
+     */
+    public static Object query(Object root, String pointer)
+    {
+        return pointer == null ? null : compile(pointer).queryFrom(root);
+    }
+
+    /**
+     * Gets a compiled JSON pointer.
+     * @param pointer JSON pointer, either in string or in URI fragment representation
+     * @return compiled pointer
+     * @throws JSONException if the pointer is invalid
+     */
+    public static Pointer compile(String pointer)
+    {
+        Pointer compiled = pointers.get(pointer);
+        if (compiled == null)
+        {
+            compiled = new Pointer(pointer);
+            pointers.put(pointer, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Builds the value found between the given offsets.
+     */
+    protected static Object value(String source, int start, int end)
+    {
+        switch (source.charAt(start))
+        {
+            case '{':
+                return new LazyObject(source, start, end);
+            case '[':
+                return new LazyArray(source, start, end);
+            case '"':
+                return decodeString(source, start, end);
+            default:
+            {
+                Object value = JSONObject.stringToValue(source.substring(start, end));
+                if (value instanceof String)
+                {
+                    throw syntaxError("invalid value '" + value + "'", start);
+                }
+                return value;
+            }
+        }
+    }
+
+    protected static int skipWhitespace(String source, int pos, int end)
+    {
+        while (pos < end)
+        {
+            char c = source.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+            {
+                break;
+            }
+            ++pos;
+        }
+        return pos;
+    }
+
+    /**
+     * Skips the value starting at the given offset.
+     * @return offset following the value
+     */
+    protected static int skipValue(String source, int pos, int end)
+    {
+        char c = source.charAt(pos);
+        switch (c)
+        {
+            case '"':
+                return skipString(source, pos, end);
+            case '{':
+            case '[':
+            {
+                char open = c;
+                int depth = 0;
+                while (pos < end)
+                {
+                    c = source.charAt(pos);
+                    switch (c)
+                    {
+                        case '"':
+                            pos = skipString(source, pos, end);
+                            continue;
+                        case '{':
+                        case '[':
+                            ++depth;
+                            break;
+                        case '}':
+                        case ']':
+                            if (--depth == 0)
+                            {
+                                return pos + 1;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                    ++pos;
+                }
+                throw syntaxError("unterminated " + (open == '{' ? "object" : "array"), pos);
+            }
+            case ',':
+            case ':':
+            case '}':
+            case ']':
+                throw syntaxError("unexpected character '" + c + "'", pos);
+            default:
+            {
+                int start = pos;
+                while (pos < end)
+                {
+                    c = source.charAt(pos);
+                    if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r')
+                    {
+                        break;
+                    }
+                    ++pos;
+                }
+                return pos;
+            }
+        }
+    }
+
+    protected static int skipString(String source, int pos, int end)
+    {
+        ++pos;
+        while (pos < end)
+        {
+            char c = source.charAt(pos++);
+            if (c == '"')
+            {
+                return pos;
+            }
+            if (c == '\\')
+            {
+                ++pos;
+            }
+        }
+        throw syntaxError("unterminated string", end);
+    }
+
+    protected static String decodeString(String source, int start, int end)
+    {
+        /* start and end include the quotes */
+        int from = start + 1;
+        int to = end - 1;
+        int escape = source.indexOf('\\', from);
+        if (escape == -1 || escape >= to)
+        {
+            return source.substring(from, to);
+        }
+        StringBuilder builder = new StringBuilder(to - from);
+        builder.append(source, from, escape);
+        int pos = escape;
+        while (pos < to)
+        {
+            char c = source.charAt(pos++);
+            if (c != '\\')
+            {
+                builder.append(c);
+                continue;
+            }
+            c = source.charAt(pos++);
+            switch (c)
+            {
+                case 'b': builder.append('\b'); break;
+                case 't': builder.append('\t'); break;
+                case 'n': builder.append('\n'); break;
+                case 'f': builder.append('\f'); break;
+                case 'r': builder.append('\r'); break;
+                case 'u':
+                {
+                    if (pos + 4 > to)
+                    {
+                        throw syntaxError("invalid unicode escape", pos);
+                    }
+                    try
+                    {
+                        builder.append((char)Integer.parseInt(source.substring(pos, pos + 4), 16));
+                    }
+                    catch (NumberFormatException nfe)
+                    {
+                        throw syntaxError("invalid unicode escape", pos);
+                    }
+                    pos += 4;
+                    break;
+                }
+                case '"':
+                case '\'':
+                case '\\':
+                case '/':
+                    builder.append(c);
+                    break;
+                default:
+                    throw syntaxError("invalid escape sequence", pos - 1);
+            }
+        }
+        return builder.toString();
+    }
+
+    protected static JSONException syntaxError(String message, int pos)
+    {
+        return new JSONException("could not parse JSON: " + message + " at position " + pos);
+    }
+
+    /**
+     * Compiled JSON pointer: a list of unescaped segments, along with their
+     * array index values.
+     */
+    public static class Pointer
+    {
+        private final String[] segments;
+        private final int[] indexes;
+
+        /**
+         * @param pointer JSON pointer, either in string or in URI fragment representation
+         * @throws JSONException if the pointer is invalid
+         */
+        public Pointer(String pointer)
+        {
+            if (pointer.startsWith("#"))
+            {
+                try
+                {
+                    pointer = URLDecoder.decode(pointer.substring(1), "UTF-8");
+                }
+                catch (UnsupportedEncodingException uee)
+                {
+                    throw new JSONException(uee);
+                }
+            }
+            if (pointer.length() == 0)
+            {
+                segments = new String[0];
+            }
+            else if (pointer.charAt(0) != '/')
+            {
+                throw new JSONException("a JSON pointer should start with '/' or '#/'");
+            }
+            else
+            {
+                segments = pointer.substring(1).split("/", -1);
+            }
+            indexes = new int[segments.length];
+            for (int i = 0; i < segments.length; ++i)
+            {
+                segments[i] = segments[i].replace("~1", "/").replace("~0", "~");
+                try
+                {
+                    indexes[i] = Integer.parseInt(segments[i]);
+                }
+                catch (NumberFormatException nfe)
+                {
+                    indexes[i] = -1;
+                }
+            }
+        }
+
+        /**
+         * Evaluates this pointer.
+         * @param root root value
+         * @return found value, or null
+         */
+        public Object queryFrom(Object root)
+        {
+            Object current = root;
+            for (int i = 0; i < segments.length && current != null; ++i)
+            {
+                if (current instanceof LazyObject)
+                {
+                    current = ((LazyObject)current).get(segments[i]);
+                }
+                else if (current instanceof LazyArray)
+                {
+                    LazyArray array = (LazyArray)current;
+                    int index = indexes[i];
+                    current = index >= 0 && index < array.size() ? array.get(index) : null;
+                }
+                else
+                {
+                    current = null;
+                }
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Lazy JSON object.
+     */
+    public static class LazyObject extends AbstractMap<String,Object>
+    {
+        private final String source;
+        private final int start;
+        private final int end;
+
+        /* keys and values offsets, filled upon first access */
+        private Map<String,Integer> index = null;
+        private int[] offsets = null;
+        private Object[] values = null;
+
+        protected LazyObject(String source, int start, int end)
+        {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        private synchronized void ensureIndexed()
+        {
+            if (index != null)
+            {
+                return;
+            }
+            Map<String,Integer> keys = new LinkedHashMap<String,Integer>();
+            int[] positions = new int[16];
+            int count = 0;
+            int pos = skipWhitespace(source, start + 1, end);
+            if (source.charAt(pos) != '}')
+            {
+                while (true)
+                {
+                    if (source.charAt(pos) != '"')
+                    {
+                        throw syntaxError("expecting a key", pos);
+                    }
+                    int keyEnd = skipString(source, pos, end);
+                    String key = decodeString(source, pos, keyEnd);
+                    pos = skipWhitespace(source, keyEnd, end);
+                    if (source.charAt(pos) != ':')
+                    {
+                        throw syntaxError("expecting ':'", pos);
+                    }
+                    int valueStart = skipWhitespace(source, pos + 1, end);
+                    int valueEnd = skipValue(source, valueStart, end);
+                    if (2 * count + 2 > positions.length)
+                    {
+                        int[] grown = new int[2 * positions.length];
+                        System.arraycopy(positions, 0, grown, 0, positions.length);
+                        positions = grown;
+                    }
+                    positions[2 * count] = valueStart;
+                    positions[2 * count + 1] = valueEnd;
+                    /* like in javascript, the last duplicate key wins */
+                    keys.put(key, count++);
+                    pos = skipWhitespace(source, valueEnd, end);
+                    char c = source.charAt(pos);
+                    if (c == '}')
+                    {
+                        break;
+                    }
+                    if (c != ',')
+                    {
+                        throw syntaxError("expecting ',' or '}'", pos);
+                    }
+                    pos = skipWhitespace(source, pos + 1, end);
+                }
+            }
+            offsets = positions;
+            values = new Object[count];
+            index = keys;
+        }
+
+        private synchronized Object value(int i)
+        {
+            Object value = values[i];
+            if (value == null)
+            {
+                value = LazyJson.value(source, offsets[2 * i], offsets[2 * i + 1]);
+                values[i] = value;
+            }
+            return value;
+        }
+
+        @Override
+        public Object get(Object key)
+        {
+            ensureIndexed();
+            Integer i = index.get(key);
+            return i == null ? null : value(i);
+        }
+
+        @Override
+        public boolean containsKey(Object key)
+        {
+            ensureIndexed();
+            return index.containsKey(key);
+        }
+
+        @Override
+        public int size()
+        {
+            ensureIndexed();
+            return index.size();
+        }
+
+        @Override
+        public Set<String> keySet()
+        {
+            ensureIndexed();
+            return Collections.unmodifiableSet(index.keySet());
+        }
+
+        /**
+         * @return iterator over keys
+         */
+        public Iterator<String> keys()
+        {
+            return keySet().iterator();
+        }
+
+        @Override
+        public Set<Map.Entry<String,Object>> entrySet()
+        {
+            ensureIndexed();
+            return new AbstractSet<Map.Entry<String,Object>>()
+            {
+                public Iterator<Map.Entry<String,Object>> iterator()
+                {
+                    final Iterator<Map.Entry<String,Integer>> it = index.entrySet().iterator();
+                    return new Iterator<Map.Entry<String,Object>>()
+                    {
+                        public boolean hasNext()
+                        {
+                            return it.hasNext();
+                        }
+
+                        public Map.Entry<String,Object> next()
+                        {
+                            Map.Entry<String,Integer> entry = it.next();
+                            return new AbstractMap.SimpleImmutableEntry<String,Object>(entry.getKey(), value(entry.getValue()));
+                        }
+
+                        public void remove()
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                public int size()
+                {
+                    return index.size();
+                }
+            };
+        }
+
+        /**
+         * @return JSON source of this object
+         */
+        @Override
+        public String toString()
+        {
+            return source.substring(start, end);
+        }
+    }
+
+    /**
+     * Lazy JSON array.
+     */
+    public static class LazyArray extends AbstractList<Object> implements RandomAccess
+    {
+        private final String source;
+        private final int start;
+        private final int end;
+
+        /* values offsets, filled upon first access */
+        private int[] offsets = null;
+        private Object[] values = null;
+
+        protected LazyArray(String source, int start, int end)
+        {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        private synchronized void ensureIndexed()
+        {
+            if (values != null)
+            {
+                return;
+            }
+            int[] positions = new int[16];
+            int count = 0;
+            int pos = firstValue();
+            while (pos != -1)
+            {
+                int valueEnd = skipValue(source, pos, end);
+                if (2 * count + 2 > positions.length)
+                {
+                    int[] grown = new int[2 * positions.length];
+                    System.arraycopy(positions, 0, grown, 0, positions.length);
+                    positions = grown;
+                }
+                positions[2 * count] = pos;
+                positions[2 * count + 1] = valueEnd;
+                ++count;
+                pos = nextValue(valueEnd);
+            }
+            offsets = positions;
+            values = new Object[count];
+        }
+
+        /**
+         * @return offset of the first value, or -1 if empty
+         */
+        private int firstValue()
+        {
+            int pos = skipWhitespace(source, start + 1, end);
+            return source.charAt(pos) == ']' ? -1 : pos;
+        }
+
+        /**
+         * @return offset of the value following the one ending at the given offset, or -1 if none
+         */
+        private int nextValue(int valueEnd)
+        {
+            int pos = skipWhitespace(source, valueEnd, end);
+            char c = source.charAt(pos);
+            if (c == ']')
+            {
+                return -1;
+            }
+            if (c != ',')
+            {
+                throw syntaxError("expecting ',' or ']'", pos);
+            }
+            return skipWhitespace(source, pos + 1, end);
+        }
+
+        @Override
+        public synchronized Object get(int i)
+        {
+            ensureIndexed();
+            if (i < 0 || i >= values.length)
+            {
+                throw new IndexOutOfBoundsException(String.valueOf(i));
+            }
+            Object value = values[i];
+            if (value == null)
+            {
+                value = LazyJson.value(source, offsets[2 * i], offsets[2 * i + 1]);
+                values[i] = value;
+            }
+            return value;
+        }
+
+        @Override
+        public int size()
+        {
+            ensureIndexed();
+            return values.length;
+        }
+
+        /**
+         * Returns an iterator which scans the array values sequentially, without
+         * indexing nor retaining them.
+         * @return values cursor
+         */
+        public Iterator<Object> cursor()
+        {
+            return new Iterator<Object>()
+            {
+                private int pos = firstValue();
+
+                public boolean hasNext()
+                {
+                    return pos != -1;
+                }
+
+                public Object next()
+                {
+                    if (pos == -1)
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    int valueEnd = skipValue(source, pos, end);
+                    Object value = LazyJson.value(source, pos, valueEnd);
+                    pos = nextValue(valueEnd);
+                    return value;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        /**
+         * @return JSON source of this array
+         */
+        @Override
+        public String toString()
+        {
+            return source.substring(start, end);
+        }
+    }
+}
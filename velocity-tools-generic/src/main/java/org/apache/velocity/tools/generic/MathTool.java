@@ -23,7 +23,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 
-import org.apache.commons.beanutils.PropertyUtils;
+import org.apache.velocity.tools.ClassUtils;
 import org.apache.velocity.tools.ConversionUtils;
 import org.apache.velocity.tools.Scope;
 import org.apache.velocity.tools.config.DefaultKey;
@@ -750,7 +750,7 @@ public class MathTool extends FormatConfig
         {
             for (Iterator i = collection.iterator(); i.hasNext();)
             {
-                Object property = PropertyUtils.getProperty(i.next(), field);
+                Object property = getProperty(i.next(), field);
                 Number value = toNumber(property);
                 // skip over nulls (i.e. treat them as 0)
                 if (value != null)
@@ -960,4 +960,259 @@ public class MathTool extends FormatConfig
         return matchType(total, avg);
     }
 
+    // ------------------------- Statistics methods ------------------
+
+    /**
+     * Computes in a single pass the count, total, average, minimum and
+     * maximum of the values of a property of Java beans. Null elements
+     * and null values are not counted.
+     *
+     * <p>Example: <code>$math.stats($rows, 'amount').average</code></p>
+     *
+     * @param collection A collection containing Java beans
+     * @param field A Java Bean field for the objects in <i>collection</i> that
+     *              will return a number.
+     * @return the statistics of the values, or <code>null</code> if a
+     *         property could not be read or is not a number
+     * @since VelocityTools 3.0
+     */
+    public Statistics stats(Collection collection, String field)
+    {
+        if (collection == null || field == null)
+        {
+            return null;
+        }
+        Accumulator accumulator = new Accumulator();
+        try
+        {
+            for (Object bean : collection)
+            {
+                if (bean != null && !accumulator.add(getProperty(bean, field)))
+                {
+                    return null;
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+        return accumulator.getStatistics();
+    }
+
+    /**
+     * @param array An array containing Java beans
+     * @param field A Java Bean field for the objects in <i>array</i> that
+     *              will return a number.
+     * @return the statistics of the values, or <code>null</code> if a
+     *         property could not be read or is not a number
+     * @see #stats(Collection, String)
+     * @since VelocityTools 3.0
+     */
+    public Statistics stats(Object[] array, String field)
+    {
+        if (array == null)
+        {
+            return null;
+        }
+        return stats(Arrays.asList(array), field);
+    }
+
+    /**
+     * Computes in a single pass the count, total, average, minimum and
+     * maximum of numeric values. Null values are not counted.
+     *
+     * @param collection A collection containing numeric values
+     * @return the statistics of the values, or <code>null</code> if a
+     *         value is not a number
+     * @since VelocityTools 3.0
+     */
+    public Statistics stats(Collection collection)
+    {
+        if (collection == null)
+        {
+            return null;
+        }
+        Accumulator accumulator = new Accumulator();
+        for (Object value : collection)
+        {
+            if (!accumulator.add(value))
+            {
+                return null;
+            }
+        }
+        return accumulator.getStatistics();
+    }
+
+    /**
+     * Reads a property of a bean.
+     *
+     * @param bean the bean
+     * @param field the property name
+     * @return the property value
+     * @throws Exception if the property cannot be read
+     * @see ClassUtils#getProperty(Object, String)
+     */
+    protected Object getProperty(Object bean, String field) throws Exception
+    {
+        return ClassUtils.getProperty(bean, field);
+    }
+
+    /**
+     * Single-pass accumulator. Totals of integral values are kept exact
+     * in a long, as long as they do not overflow.
+     */
+    protected class Accumulator
+    {
+        private int count = 0;
+        private boolean integral = true;
+        private long longTotal = 0;
+        private double doubleTotal = 0;
+        private Number min = null;
+        private double minValue = Double.POSITIVE_INFINITY;
+        private Number max = null;
+        private double maxValue = Double.NEGATIVE_INFINITY;
+
+        /**
+         * @param value value to add, ignored if null
+         * @return false if the value is not a number
+         */
+        public boolean add(Object value)
+        {
+            if (value == null)
+            {
+                return true;
+            }
+            Number number = toNumber(value);
+            if (number == null)
+            {
+                return false;
+            }
+            double d = number.doubleValue();
+            ++count;
+            doubleTotal += d;
+            if (integral)
+            {
+                if (number instanceof Integer || number instanceof Long ||
+                    number instanceof Short || number instanceof Byte)
+                {
+                    long l = number.longValue();
+                    long sum = longTotal + l;
+                    /* overflow if both operands have the same sign, and the sum a different one */
+                    if (((longTotal ^ sum) & (l ^ sum)) < 0)
+                    {
+                        integral = false;
+                    }
+                    longTotal = sum;
+                }
+                else
+                {
+                    integral = false;
+                }
+            }
+            if (min == null || d < minValue)
+            {
+                min = number;
+                minValue = d;
+            }
+            if (max == null || d > maxValue)
+            {
+                max = number;
+                maxValue = d;
+            }
+            return true;
+        }
+
+        /**
+         * @return the accumulated statistics
+         */
+        public Statistics getStatistics()
+        {
+            Number total;
+            if (integral)
+            {
+                if (longTotal > Integer.MAX_VALUE || longTotal < Integer.MIN_VALUE)
+                {
+                    total = Long.valueOf(longTotal);
+                }
+                else
+                {
+                    total = Integer.valueOf((int)longTotal);
+                }
+            }
+            else
+            {
+                total = matchType(min, max, doubleTotal);
+            }
+            Number average = count == 0 ? null : matchType(total, total.doubleValue() / count);
+            return new Statistics(count, total, average, min, max);
+        }
+    }
+
+    /**
+     * Statistics returned by the <code>stats()</code> methods.
+     * @since VelocityTools 3.0
+     */
+    public static class Statistics
+    {
+        private final int count;
+        private final Number total;
+        private final Number average;
+        private final Number min;
+        private final Number max;
+
+        public Statistics(int count, Number total, Number average, Number min, Number max)
+        {
+            this.count = count;
+            this.total = total;
+            this.average = average;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * @return number of (non-null) values
+         */
+        public int getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return sum of the values
+         */
+        public Number getTotal()
+        {
+            return total;
+        }
+
+        /**
+         * @return average of the values, or <code>null</code> if there is none
+         */
+        public Number getAverage()
+        {
+            return average;
+        }
+
+        /**
+         * @return minimum value, or <code>null</code> if there is none
+         */
+        public Number getMin()
+        {
+            return min;
+        }
+
+        /**
+         * @return maximum value, or <code>null</code> if there is none
+         */
+        public Number getMax()
+        {
+            return max;
+        }
+
+        public String toString()
+        {
+            return "{count=" + count + ", total=" + total + ", average=" + average + ", min=" + min + ", max=" + max + "}";
+        }
+    }
 }
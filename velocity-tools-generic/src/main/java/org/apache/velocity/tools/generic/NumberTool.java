@@ -63,6 +63,24 @@ import org.apache.velocity.tools.config.DefaultKey;
 @DefaultKey("number")
 public class NumberTool extends FormatConfig implements Serializable
 {
+    /* whether a subclass overrides the NumberFormat creation method, in which case
+     * formatting goes through it rather than through the per-thread formats cache */
+    private static final ClassValue<Boolean> customFormats = new ClassValue<Boolean>()
+    {
+        @Override
+        protected Boolean computeValue(Class<?> clazz)
+        {
+            try
+            {
+                return clazz.getMethod("getNumberFormat", String.class, Locale.class).getDeclaringClass() != NumberTool.class;
+            }
+            catch (NoSuchMethodException nsme)
+            {
+                return true;
+            }
+        }
+    };
+
     // ------------------------- formatting methods ---------------------------
 
     /**
@@ -144,7 +162,9 @@ public class NumberTool extends FormatConfig implements Serializable
     public String format(String format, Object obj, Locale locale)
     {
         Number number = toNumber(obj);
-        NumberFormat nf = getNumberFormat(format, locale);
+        NumberFormat nf = customFormats.get(getClass()) ?
+            getNumberFormat(format, locale) :
+            ConversionUtils.getCachedNumberFormat(format, locale);
         if (number == null || nf == null)
         {
             return null;
@@ -161,6 +181,8 @@ public class NumberTool extends FormatConfig implements Serializable
      * will be returned with the number style set to the
      * specified style.  If it is a custom format, then a customized
      * {@link NumberFormat} will be returned.
+     * The format() methods go through this method when a subclass
+     * overrides it, and through per-thread cached instances otherwise.
      *
      * @param format the custom or standard formatting pattern to be used
      * @param locale the {@link Locale} to be used
@@ -19,16 +19,29 @@ package org.apache.velocity.tools.generic;
  * under the License.
  */
 
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.Velocity;
 import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.app.event.EventCartridge;
+import org.apache.velocity.app.event.ReferenceInsertionEventHandler;
 import org.apache.velocity.context.Context;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.Renderable;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.RuntimeSingleton;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.tools.BoundedCache;
 import org.apache.velocity.tools.Scope;
 import org.apache.velocity.tools.ToolContext;
 import org.apache.velocity.tools.config.DefaultKey;
 import org.apache.velocity.tools.config.InvalidScope;
+import org.apache.velocity.util.RuntimeServicesAware;
 
 /**
  * This tool exposes methods to evaluate the given
@@ -71,6 +84,15 @@ import org.apache.velocity.tools.config.InvalidScope;
  * &lt;/tools&gt;
  * </pre>
  *
+ * <p>Parsed templates are kept in a cache shared by all the RenderTool instances
+ * using the same engine and the same <code>cacheSize</code> configuration property
+ * (100 by default, zero disabling the cache), so that evaluating the same VTL
+ * string again does not parse it again. Only the VTL given by the caller is cached:
+ * the intermediate results of {@link #recurse(String)} are evaluated without caching.
+ * The {@link #stream(String)} method and the
+ * {@link #eval(Context,String,Writer)} method write the rendering directly
+ * to the template output or to the provided writer.</p>
+ *
  * <p>Ok, so these examples are really lame.  But, it seems like
  * someone out there is always asking how to do stuff like this
  * and we always tell them to write a tool.  Now we can just tell
@@ -118,11 +140,36 @@ public class RenderTool extends SafeConfig
 
     public static final String KEY_FORCE_THREAD_SAFE = "forceThreadSafe";
 
+    /**
+     * Maximum number of parsed templates kept in cache.
+     * @since VelocityTools 3.0
+     */
+    public static final String KEY_CACHE_SIZE = "cacheSize";
+    public static final int DEFAULT_CACHE_SIZE = 100;
+
+    private static final String LOG_TAG = "RenderTool.eval()";
+    private static final String CACHE_ATTRIBUTE_PREFIX = RenderTool.class.getName() + ".cache.";
+
+    private static final String RUNTIME_ATTRIBUTE = RenderTool.class.getName() + ".runtime";
+
+    /* application attribute value for engines whose runtime services could not be found */
+    private static final Object NO_RUNTIME = new Object();
+
+    /* cache of parsed templates, keyed by VTL */
+    private static final class TemplateCache extends BoundedCache<String,Template>
+    {
+        private TemplateCache(int maxSize)
+        {
+            super(maxSize);
+        }
+    }
+
     private VelocityEngine engine = null;
     private Context context;
     private int parseDepth = DEFAULT_PARSE_DEPTH;
     private boolean catchExceptions = true;
     private boolean forceThreadSafe = true;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
 
     /**
      * Looks for deprecated parse depth and catch.exceptions properties,
@@ -147,6 +194,8 @@ public class RenderTool extends SafeConfig
         // check if they want thread-safety manually turned off
         this.forceThreadSafe =
             parser.getBoolean(KEY_FORCE_THREAD_SAFE, forceThreadSafe);
+        this.cacheSize = parser.getInt(KEY_CACHE_SIZE, cacheSize);
+
         // if we're request-scoped, then there's no point in forcing the issue
         if (Scope.REQUEST.equals(parser.getString("scope")))
         {
@@ -180,6 +229,33 @@ public class RenderTool extends SafeConfig
         }
     }
 
+    /**
+     * Set the maximum number of parsed templates kept in cache, zero meaning no cache.
+     *
+     * @since VelocityTools 3.0
+     */
+    public void setCacheSize(int cacheSize)
+    {
+        if (!isConfigLocked())
+        {
+            this.cacheSize = cacheSize;
+        }
+        else if (this.cacheSize != cacheSize)
+        {
+            getLog().error("Attempt was made to alter cache size while config was locked.");
+        }
+    }
+
+    /**
+     * Get the maximum number of parsed templates kept in cache.
+     *
+     * @since VelocityTools 3.0
+     */
+    public int getCacheSize()
+    {
+        return this.cacheSize;
+    }
+
     /**
      * Sets the {@link Context} to be used by the {@link #eval(String)}
      * and {@link #recurse(String)} methods.
@@ -258,6 +334,67 @@ public class RenderTool extends SafeConfig
     }
 
 
+    /**
+     * <p>Returns an object which, when rendered, evaluates the given VTL
+     * like {@link #eval(String)} does, but writes the result directly
+     * into the template output.</p>
+     *
+     * @param vtl the code to be evaluated
+     * @return a renderable object
+     * @since VelocityTools 3.0
+     */
+    public Renderable stream(String vtl)
+    {
+        if (vtl == null)
+        {
+            return null;
+        }
+        return new StreamedEval(vtl);
+    }
+
+    /**
+     * Renderable object evaluating VTL towards the template writer.
+     */
+    protected class StreamedEval implements Renderable
+    {
+        private final String vtl;
+
+        protected StreamedEval(String vtl)
+        {
+            this.vtl = vtl;
+        }
+
+        public boolean render(InternalContextAdapter ica, Writer writer)
+        {
+            Context ctx = forceThreadSafe ? new VelocityContext(context) : context;
+            try
+            {
+                eval(ctx, vtl, writer);
+            }
+            catch (Exception e)
+            {
+                /* only reached when exceptions are not caught by eval() */
+                throw e instanceof RuntimeException ? (RuntimeException)e : new RuntimeException(e);
+            }
+            return true;
+        }
+
+        /**
+         * @return the evaluated code as a string, when used outside of a rendering
+         */
+        public String toString()
+        {
+            try
+            {
+                return eval(vtl);
+            }
+            catch (Exception e)
+            {
+                throw e instanceof RuntimeException ? (RuntimeException)e : new RuntimeException(e);
+            }
+        }
+    }
+
     /**
      * <p>Recursively evaluates a String containing VTL using the
      * current context, and returns the result as a String. It
@@ -286,12 +423,18 @@ public class RenderTool extends SafeConfig
      * @return the evaluated code as a String
      */
     public String eval(Context ctx, String vtl) throws Exception
+    {
+        return eval(ctx, vtl, true);
+    }
+
+    /* eval() implementation, parsed templates being cached or not */
+    private String eval(Context ctx, String vtl, boolean cache) throws Exception
     {
         if (this.catchExceptions)
         {
             try
             {
-                return internalEval(ctx, vtl);
+                return internalEval(ctx, vtl, cache);
             }
             catch (Exception e)
             {
@@ -301,34 +444,195 @@ public class RenderTool extends SafeConfig
         }
         else
         {
-            return internalEval(ctx, vtl);
+            return internalEval(ctx, vtl, cache);
         }
     }
 
 
+    /**
+     * <p>Evaluates a String containing VTL using the current context,
+     * and writes the result to the provided writer.  By default if this fails,
+     * then <code>false</code> will be returned, though this tool can be configured
+     * to let Exceptions pass through. This evaluation is not recursive.</p>
+     *
+     * @param ctx the current Context
+     * @param vtl the code to be evaluated
+     * @param writer the writer receiving the evaluated code
+     * @return whether the evaluation succeeded
+     * @since VelocityTools 3.0
+     */
+    public boolean eval(Context ctx, String vtl, Writer writer) throws Exception
+    {
+        if (this.catchExceptions)
+        {
+            try
+            {
+                return internalEval(ctx, vtl, writer);
+            }
+            catch (Exception e)
+            {
+                getLog().error("evaluation failed:", e);
+                return false;
+            }
+        }
+        else
+        {
+            return internalEval(ctx, vtl, writer);
+        }
+    }
+
     /* Internal implementation of the eval() method function. */
     protected String internalEval(Context ctx, String vtl) throws Exception
+    {
+        return internalEval(ctx, vtl, true);
+    }
+
+    /* Internal implementation of the eval() method function, parsed templates being cached or not. */
+    protected String internalEval(Context ctx, String vtl, boolean cache) throws Exception
     {
         if (vtl == null)
         {
             return null;
         }
         StringWriter sw = new StringWriter();
-        boolean success;
-        if (engine == null)
+        if (internalEval(ctx, vtl, sw, cache))
+        {
+            return sw.toString();
+        }
+        /* or would it be preferable to return the original? */
+        return null;
+    }
+
+    /* Internal implementation of the writer-direct eval() method function. */
+    protected boolean internalEval(Context ctx, String vtl, Writer writer) throws Exception
+    {
+        return internalEval(ctx, vtl, writer, true);
+    }
+
+    /* Internal implementation of the writer-direct eval() method function, parsed templates being cached or not. */
+    protected boolean internalEval(Context ctx, String vtl, Writer writer, boolean cache) throws Exception
+    {
+        if (vtl == null)
+        {
+            return false;
+        }
+        Template template = cache ? getTemplate(vtl) : null;
+        if (template != null)
         {
-            success = Velocity.evaluate(ctx, sw, "RenderTool.eval()", vtl);
+            template.merge(ctx, writer);
+            return true;
+        }
+        else if (engine == null)
+        {
+            return Velocity.evaluate(ctx, writer, LOG_TAG, vtl);
         }
         else
         {
-            success = engine.evaluate(ctx, sw, "RenderTool.eval()", vtl);
+            return engine.evaluate(ctx, writer, LOG_TAG, vtl);
         }
-        if (success)
+    }
+
+    /**
+     * Gets the parsed template for the given VTL from the cache,
+     * parsing it and caching it if needed.
+     *
+     * @param vtl the code to be evaluated
+     * @return the parsed template, or <code>null</code> if the cache is disabled
+     * @since VelocityTools 3.0
+     */
+    protected Template getTemplate(String vtl) throws Exception
+    {
+        if (cacheSize <= 0)
         {
-            return sw.toString();
+            return null;
+        }
+        RuntimeServices rsvc = getRuntimeServices();
+        if (rsvc == null)
+        {
+            return null;
+        }
+        String cacheKey = CACHE_ATTRIBUTE_PREFIX + cacheSize;
+        TemplateCache cache = (TemplateCache)rsvc.getApplicationAttribute(cacheKey);
+        if (cache == null)
+        {
+            /* a concurrent initialization would only lose a few cached templates */
+            cache = new TemplateCache(cacheSize);
+            rsvc.setApplicationAttribute(cacheKey, cache);
+        }
+        Template template = cache.get(vtl);
+        if (template == null)
+        {
+            template = new Template();
+            template.setName(LOG_TAG);
+            template.setRuntimeServices(rsvc);
+            try
+            {
+                template.setData(rsvc.parse(new StringReader(vtl), template));
+            }
+            catch (ParseException pe)
+            {
+                throw new ParseErrorException(pe, LOG_TAG);
+            }
+            template.initDocument();
+            cache.put(vtl, template);
+        }
+        return template;
+    }
+
+    /**
+     * <p>Gets the runtime services of the engine, or of the Velocity singleton.</p>
+     * <p>Since VelocityEngine does not expose its runtime services, they are obtained
+     * once per engine from a {@link RuntimeServicesAware} reference insertion handler,
+     * attached to the context of a single reference evaluation, and kept as an engine
+     * application attribute. Should the engine not hand them to the handler, this
+     * method returns <code>null</code>, and VTL is then evaluated without caching.</p>
+     *
+     * @return the runtime services, or <code>null</code> if they cannot be found
+     * @since VelocityTools 3.0
+     */
+    protected RuntimeServices getRuntimeServices() throws Exception
+    {
+        if (engine == null)
+        {
+            return RuntimeSingleton.getRuntimeServices();
+        }
+        Object runtime = engine.getApplicationAttribute(RUNTIME_ATTRIBUTE);
+        if (runtime == null)
+        {
+            RuntimeServicesProbe probe = new RuntimeServicesProbe();
+            EventCartridge cartridge = new EventCartridge();
+            cartridge.addEventHandler(probe);
+            Context probeContext = new VelocityContext();
+            cartridge.attachToContext(probeContext);
+            probeContext.put("probe", "");
+            engine.evaluate(probeContext, new StringWriter(), "RenderTool.probe", "$probe");
+            if (probe.rsvc == null)
+            {
+                getLog().debug("could not get the runtime services of {}, parsed templates will not be cached", engine);
+                runtime = NO_RUNTIME;
+            }
+            else
+            {
+                runtime = probe.rsvc;
+            }
+            engine.setApplicationAttribute(RUNTIME_ATTRIBUTE, runtime);
+        }
+        return runtime == NO_RUNTIME ? null : (RuntimeServices)runtime;
+    }
+
+    private static class RuntimeServicesProbe implements ReferenceInsertionEventHandler, RuntimeServicesAware
+    {
+        private RuntimeServices rsvc = null;
+
+        public void setRuntimeServices(RuntimeServices rs)
+        {
+            this.rsvc = rs;
+        }
+
+        public Object referenceInsert(Context context, String reference, Object value)
+        {
+            return value;
         }
-        /* or would it be preferable to return the original? */
-        return null;
     }
 
     /**
@@ -350,7 +654,8 @@ public class RenderTool extends SafeConfig
 
     protected String internalRecurse(Context ctx, String vtl, int count) throws Exception
     {
-        String result = eval(ctx, vtl);
+        /* only the VTL given by the caller is worth caching */
+        String result = eval(ctx, vtl, count == 0);
         if (result == null || result.equals(vtl))
         {
             return result;
@@ -22,10 +22,16 @@ package org.apache.velocity.tools.generic;
 import java.io.Serializable;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import org.apache.velocity.tools.BoundedCache;
 import org.apache.velocity.tools.ConversionUtils;
 import org.apache.velocity.tools.config.DefaultKey;
 
@@ -80,6 +86,16 @@ public class ResourceTool extends LocaleConfig implements Serializable
 {
     public static final String BUNDLES_KEY = "bundles";
 
+    /* ResourceBundle.getBundle() goes through a costly lookup each time, so keep
+     * a direct handle on found bundles, per base name and locale, for a limited time
+     * so that bundles expired or cleared from the ResourceBundle cache get reloaded */
+    private static final int MAX_CACHED_BUNDLES = 1024;
+    private static final long CACHED_BUNDLES_TIME_TO_LIVE = 60000;
+    private static final BoundedCache<String,ResourceBundle> bundlesCache = new BoundedCache<String,ResourceBundle>(MAX_CACHED_BUNDLES, CACHED_BUNDLES_TIME_TO_LIVE);
+
+    /* flattened bundles, per base name and locale, rebuilt whenever the bundle handle changes */
+    private static final BoundedCache<String,FlatBundle> flatBundlesCache = new BoundedCache<String,FlatBundle>(MAX_CACHED_BUNDLES, CACHED_BUNDLES_TIME_TO_LIVE);
+
     private String[] bundles = new String[] { "resources" };
 
     protected final void setDefaultBundle(String bundle)
@@ -171,7 +187,55 @@ public class ResourceTool extends LocaleConfig implements Serializable
         {
             return null;
         }
-        return ResourceBundle.getBundle(baseName, locale);
+        String cacheKey = baseName + '|' + locale;
+        ResourceBundle bundle = bundlesCache.get(cacheKey);
+        if (bundle == null)
+        {
+            bundle = ResourceBundle.getBundle(baseName, locale);
+            bundlesCache.put(cacheKey, bundle);
+        }
+        return bundle;
+    }
+
+    /**
+     * Clears the bundles kept by all resource tools, as well as the
+     * {@link ResourceBundle} cache, so that modified bundles get reloaded.
+     * Otherwise, bundles are kept for at most one minute.
+     * @since VelocityTools 3.0
+     */
+    public static void clearCache()
+    {
+        ResourceBundle.clearCache();
+        bundlesCache.clear();
+        flatBundlesCache.clear();
+    }
+
+    /**
+     * Retrieves the flattened view of the {@link ResourceBundle} for the
+     * specified baseName and locale, as returned by {@link #getBundle(String, Object)}.
+     * Flattened bundles are shared among all tools, and rebuilt whenever
+     * a different bundle instance is returned.
+     */
+    protected FlatBundle getFlatBundle(String baseName, Object loc)
+    {
+        Locale locale = (loc == null) ? getLocale() : toLocale(loc);
+        if (baseName == null || locale == null)
+        {
+            return null;
+        }
+        ResourceBundle bundle = getBundle(baseName, locale);
+        if (bundle == null)
+        {
+            return null;
+        }
+        String cacheKey = baseName + '|' + locale;
+        FlatBundle flat = flatBundlesCache.get(cacheKey);
+        if (flat == null || flat.getBundle() != bundle)
+        {
+            flat = new FlatBundle(bundle);
+            flatBundlesCache.put(cacheKey, flat);
+        }
+        return flat;
     }
 
     /**
@@ -185,19 +249,12 @@ public class ResourceTool extends LocaleConfig implements Serializable
      */
     public Object get(Object key, String baseName, Object loc)
     {
-        ResourceBundle bundle = getBundle(baseName, loc);
+        FlatBundle bundle = getFlatBundle(baseName, loc);
         if (key == null || bundle == null)
         {
             return null;
         }
-        try
-        {
-            return bundle.getObject(String.valueOf(key));
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return bundle.get(String.valueOf(key));
     }
 
     /**
@@ -230,7 +287,7 @@ public class ResourceTool extends LocaleConfig implements Serializable
      * is not null, then this will skip any keys that do not begin with
      * that prefix and trim the prefix and any subsequent '.' off of the
      * remaining ones.  If the prefix is null, then no filtering or trimming
-     * will be done.
+     * will be done. The returned list is sorted, and belongs to the caller.
      *
      * @param prefix the prefix for the requested keys
      * @param bundles the resource bundles to search
@@ -238,35 +295,12 @@ public class ResourceTool extends LocaleConfig implements Serializable
      */
     public List<String> getKeys(String prefix, String baseName, Object loc)
     {
-        ResourceBundle bundle = getBundle(baseName, loc);
+        FlatBundle bundle = getFlatBundle(baseName, loc);
         if (bundle == null)
         {
             return null;
         }
-        Enumeration<String> keys = bundle.getKeys();
-        if (keys == null)
-        {
-            return null;
-        }
-        ArrayList<String> list = new ArrayList<String>();
-        while (keys.hasMoreElements())
-        {
-            String key = keys.nextElement();
-            if (prefix == null)
-            {
-                list.add(key);
-            }
-            else if (key.startsWith(prefix))
-            {
-                key = key.substring(prefix.length(), key.length());
-                if (key.charAt(0) == '.')
-                {
-                    key = key.substring(1, key.length());
-                }
-                list.add(key);
-            }
-        }
-        return list;
+        return new ArrayList<String>(bundle.getKeys(prefix));
     }
 
     /**
@@ -290,6 +324,11 @@ public class ResourceTool extends LocaleConfig implements Serializable
             return null;
         }
 
+        if (bundles.length == 1)
+        {
+            List<String> keys = getKeys(prefix, bundles[0], locale);
+            return keys == null ? new ArrayList<String>() : keys;
+        }
         List<String> master = new ArrayList<String>();
         for (String bundle : bundles)
         {
@@ -310,11 +349,113 @@ public class ResourceTool extends LocaleConfig implements Serializable
     public String render(Object resource, Object[] args)
     {
         String value = String.valueOf(resource);
-        return MessageFormat.format(value, args);
+        return ConversionUtils.formatMessage(value, args);
     }
 
 
 
+    /**
+     * View of a {@link ResourceBundle}, with its parents fallbacks resolved,
+     * whose values are kept in a hash map for lookups, and whose keys are kept
+     * in a sorted array for prefix queries.
+     * Keys not enumerated by the bundle are looked up in the bundle itself.
+     * @since VelocityTools 3.0
+     */
+    public static class FlatBundle
+    {
+        private static final int MAX_CACHED_PREFIXES = 256;
+
+        private final ResourceBundle bundle;
+        private final String[] keys;
+        private final Map<String,Object> values;
+        private final List<String> allKeys;
+        private final BoundedCache<String,List<String>> prefixesCache = new BoundedCache<String,List<String>>(MAX_CACHED_PREFIXES);
+
+        public FlatBundle(ResourceBundle bundle)
+        {
+            this.bundle = bundle;
+            values = new HashMap<String,Object>();
+            for (Enumeration<String> e = bundle.getKeys(); e.hasMoreElements();)
+            {
+                String key = e.nextElement();
+                values.put(key, bundle.getObject(key));
+            }
+            keys = values.keySet().toArray(new String[values.size()]);
+            Arrays.sort(keys);
+            allKeys = Collections.unmodifiableList(Arrays.asList(keys));
+        }
+
+        /**
+         * @return the flattened bundle
+         */
+        public ResourceBundle getBundle()
+        {
+            return bundle;
+        }
+
+        /**
+         * @param key resource key
+         * @return the resource value, or <code>null</code> if not found
+         */
+        public Object get(String key)
+        {
+            Object value = values.get(key);
+            if (value == null && key != null)
+            {
+                /* the bundle may handle keys it does not enumerate */
+                try
+                {
+                    value = bundle.getObject(key);
+                }
+                catch (MissingResourceException mre)
+                {
+                    value = null;
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Returns the (unmodifiable) sorted list of keys starting with the specified
+         * prefix, with the prefix and any subsequent '.' trimmed off, or all the
+         * keys if the prefix is null.
+         * @param prefix keys prefix, or <code>null</code>
+         * @return the matching keys
+         */
+        public List<String> getKeys(String prefix)
+        {
+            if (prefix == null)
+            {
+                return allKeys;
+            }
+            List<String> matching = prefixesCache.get(prefix);
+            if (matching == null)
+            {
+                int index = Arrays.binarySearch(keys, prefix);
+                if (index < 0)
+                {
+                    index = -index - 1;
+                }
+                List<String> list = new ArrayList<String>();
+                for (; index < keys.length && keys[index].startsWith(prefix); index++)
+                {
+                    String key = keys[index].substring(prefix.length());
+                    if (key.length() > 0 && key.charAt(0) == '.')
+                    {
+                        key = key.substring(1);
+                    }
+                    if (key.length() > 0)
+                    {
+                        list.add(key);
+                    }
+                }
+                matching = Collections.unmodifiableList(list);
+                prefixesCache.put(prefix, matching);
+            }
+            return matching;
+        }
+    }
+
     /**
      * Internal class used to enable an elegant syntax for accessing
      * resources.
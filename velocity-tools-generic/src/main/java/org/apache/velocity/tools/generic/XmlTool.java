@@ -19,20 +19,40 @@ package org.apache.velocity.tools.generic;
  * under the License.
  */
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.velocity.tools.BoundedCache;
 import org.apache.velocity.tools.XmlUtils;
 
 import org.apache.velocity.tools.ConversionUtils;
 import org.apache.velocity.tools.config.DefaultKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -49,6 +69,7 @@ import org.w3c.dom.Text;
  *     <ul>
  *         <li><code>resource</code>=<i>file or classpath resource</i></li>
  *         <li><code>source</code>=<i>URL</i></li>
+ *         <li><code>documentCacheSize</code>=<i>size of the application-wide parsed resources cache, zero to disable it (defaults to 32)</i></li>
  *     </ul>
  * </p>
  *
@@ -88,11 +109,33 @@ import org.w3c.dom.Text;
 @DefaultKey("xml")
 public class XmlTool extends SafeConfig implements Serializable
 {
+    /**
+     * Configuration key for the size of the application-wide cache of parsed
+     * resources documents (zero disables the cache)
+     */
+    public static final String DOCUMENT_CACHE_SIZE_KEY = "documentCacheSize";
+
+    /**
+     * Default size of the parsed resources documents cache
+     */
+    public static final int DEFAULT_DOCUMENT_CACHE_SIZE = 32;
+
+    /**
+     * Parsed resources documents caches, by size
+     */
+    private static final ConcurrentMap<Integer,BoundedCache<String,CachedDocument>> documentCaches =
+        new ConcurrentHashMap<Integer,BoundedCache<String,CachedDocument>>();
+
     /**
      * ImportSupport utility which provides underlying i/o
      */
     protected ImportSupport importSupport = null;
 
+    /**
+     * Parsed resources documents cache
+     */
+    private transient BoundedCache<String,CachedDocument> documentCache = null;
+
     /**
      * ImportSupport initialization
      * @param config
@@ -111,6 +154,24 @@ public class XmlTool extends SafeConfig implements Serializable
     {
         super.configure(values);
         initializeImportSupport(values);
+        int documentCacheSize = values.getInt(DOCUMENT_CACHE_SIZE_KEY, DEFAULT_DOCUMENT_CACHE_SIZE);
+        if (documentCacheSize > 0)
+        {
+            documentCache = documentCaches.get(documentCacheSize);
+            if (documentCache == null)
+            {
+                documentCache = new BoundedCache<String,CachedDocument>(documentCacheSize);
+                BoundedCache<String,CachedDocument> previous = documentCaches.putIfAbsent(documentCacheSize, documentCache);
+                if (previous != null)
+                {
+                    documentCache = previous;
+                }
+            }
+        }
+        else
+        {
+            documentCache = null;
+        }
         String resource = values.getString(ImportSupport.RESOURCE_KEY);
         if (resource != null)
         {
@@ -198,10 +259,22 @@ public class XmlTool extends SafeConfig implements Serializable
     }
 
     /**
-     * Reads and parses a local resource file
+     * Reads and parses a local resource file. Parsed documents are kept in an
+     * application-wide cache (unless the <code>documentCacheSize</code> configuration
+     * property is zero), and reparsed whenever the resource is modified. Each tool
+     * gets its own copy of the cached document.
      */
     public void read(String resource)
     {
+        if (documentCache != null && resource != null)
+        {
+            URL url = importSupport.getResourceURL(resource);
+            if (url != null)
+            {
+                readCached(url);
+                return;
+            }
+        }
         Reader reader = null;
         try
         {
@@ -228,6 +301,55 @@ public class XmlTool extends SafeConfig implements Serializable
         }
     }
 
+    /**
+     * Reads a local resource document from the cache, or parses and caches it.
+     * @param url resource URL
+     */
+    protected void readCached(URL url)
+    {
+        String key = url.toExternalForm();
+        long lastModified = ImportSupport.getLastModified(url);
+        CachedDocument cached = documentCache.get(key);
+        if (cached == null || cached.lastModified != lastModified)
+        {
+            Reader reader = null;
+            try
+            {
+                reader = importSupport.getResourceReader(url);
+                if (reader == null)
+                {
+                    setRoot(null);
+                    return;
+                }
+                Element root = XmlUtils.parse(reader);
+                if (root == null)
+                {
+                    setRoot(null);
+                    return;
+                }
+                cached = new CachedDocument(root.getOwnerDocument(), lastModified);
+                documentCache.put(key, cached);
+            }
+            catch (Exception e)
+            {
+                getLog().error("could not read XML resource {}", url, e);
+                return;
+            }
+            finally
+            {
+                if (reader != null)
+                {
+                    try
+                    {
+                        reader.close();
+                    }
+                    catch (IOException ioe) {}
+                }
+            }
+        }
+        setRoot(cached.copy());
+    }
+
     /**
      * Reads and parses a remote or local URL
      */
@@ -259,6 +381,76 @@ public class XmlTool extends SafeConfig implements Serializable
         }
     }
 
+    /**
+     * <p>Reads a remote or local URL in streaming mode, returning an iterator
+     * over the records of the document found at the given path. Records are
+     * parsed lazily as the template iterates, each one as a standalone DOM
+     * subtree, so that the DOM memory usage is bounded by the size of the
+     * largest record rather than by the size of the whole document tree.</p>
+     * <p>The path is a slash-separated list of element local names starting
+     * at the document root, where <code>*</code> matches any name, as
+     * in <code>$xml.stream($url, '/catalog/item')</code>, or a single
+     * name preceded by a double slash, like <code>//item</code>,
+     * to match elements at any depth (excluding elements nested in
+     * another record).</p>
+     * <p>The content of the URL is read upfront (bounded by the <code>maxContentLength</code>
+     * configuration property, if any) and the connection released, so that no resource
+     * is left open when the template does not iterate until the end; only the DOM
+     * construction is deferred.</p>
+     * @param url URL of the document
+     * @param path path of records
+     * @return records iterator, or <code>null</code> if the URL could not be read
+     */
+    public StreamIterator stream(String url, String path)
+    {
+        if (url == null || path == null || importSupport == null)
+        {
+            return null;
+        }
+        try
+        {
+            String content = importSupport.acquireString(url);
+            if (content != null)
+            {
+                return new StreamIterator(new StringReader(content), path);
+            }
+        }
+        catch (Exception e)
+        {
+            getLog().error("could not stream XML content from URL {}", url, e);
+        }
+        return null;
+    }
+
+    /**
+     * Starts fetching the supplied remote URLs concurrently, so that
+     * subsequent calls to {@link #fetch(String)} for those URLs
+     * don't wait for each of them in turn.
+     *
+     * @param urls the URLs to prefetch
+     */
+    public void prefetch(Collection<String> urls)
+    {
+        if (urls != null && importSupport != null)
+        {
+            importSupport.prefetch(urls);
+        }
+    }
+
+    /**
+     * Starts fetching the supplied remote URLs concurrently.
+     *
+     * @param urls the URLs to prefetch
+     * @see #prefetch(Collection)
+     */
+    public void prefetch(String... urls)
+    {
+        if (urls != null && importSupport != null)
+        {
+            importSupport.prefetch(Arrays.asList(urls));
+        }
+    }
+
     /**
      * This will first attempt to find an attribute with the
      * specified name and return its value.  If no such attribute
@@ -266,6 +458,9 @@ public class XmlTool extends SafeConfig implements Serializable
      * the given value to a {@link Number} and get the result of
      * {@link #get(Number)}.  If the number conversion fails,
      * then this will convert the object to a string. If that string
+     * is a simple navigation step (<code>name</code>, <code>name[n]</code>
+     * or <code>@name</code>), the matching child elements or attribute of
+     * the first/sole node are directly returned. Otherwise, if that string
      * does not contain a '/', it appends the result of {@link #getPath()}
      * and a '/' to the front of it.  Finally, it delegates the string to the
      * {@link #find(String)} method and returns the result of that.
@@ -293,11 +488,129 @@ public class XmlTool extends SafeConfig implements Serializable
         }
         if (s.indexOf('/') < 0)
         {
+            int nameEnd = nameEnd(s, s.charAt(0) == '@' ? 1 : 0);
+            if (nameEnd > 0)
+            {
+                return navigate(s, nameEnd);
+            }
             s = getPath()+'/'+s;
         }
         return find(s);
     }
 
+    /**
+     * Returns the end of the XML name starting at <code>start</code>
+     * if this name is followed by nothing, or (for elements only)
+     * by a positional predicate like <code>[2]</code>.
+     * @param step navigation step
+     * @param start name start
+     * @return name end, or -1 if this is not a simple navigation step
+     */
+    protected static int nameEnd(String step, int start)
+    {
+        int len = step.length();
+        if (start >= len)
+        {
+            return -1;
+        }
+        char c = step.charAt(start);
+        if (!Character.isLetter(c) && c != '_')
+        {
+            return -1;
+        }
+        int i = start + 1;
+        while (i < len)
+        {
+            c = step.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.')
+            {
+                break;
+            }
+            ++i;
+        }
+        if (i == len)
+        {
+            return i;
+        }
+        if (start > 0 || step.charAt(i) != '[' || step.charAt(len - 1) != ']' || i + 2 == len)
+        {
+            return -1;
+        }
+        for (int j = i + 1; j < len - 1; ++j)
+        {
+            c = step.charAt(j);
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Performs a simple navigation step from the first/sole node without
+     * resorting to XPath: the result is the same as the one of
+     * <code>find(getPath() + '/' + step)</code>.
+     * @param step simple navigation step, as validated by {@link #nameEnd(String, int)}
+     * @param nameEnd name end
+     * @return matching child elements or attribute, or <code>null</code>
+     */
+    protected XmlTool navigate(String step, int nameEnd)
+    {
+        Node node = node();
+        if (!(node instanceof Element))
+        {
+            return null;
+        }
+        Element element = (Element)node;
+        if (step.charAt(0) == '@')
+        {
+            /* like XPath, only match attributes without namespace */
+            Attr attr = element.getAttributeNodeNS(null, step.substring(1));
+            return attr == null ? null : new XmlTool(attr);
+        }
+        String name = step.substring(0, nameEnd);
+        int index = 0;
+        if (nameEnd < step.length())
+        {
+            try
+            {
+                index = Integer.parseInt(step.substring(nameEnd + 1, step.length() - 1));
+            }
+            catch (NumberFormatException nfe)
+            {
+                return null;
+            }
+            if (index < 1)
+            {
+                return null;
+            }
+        }
+        List<Node> found = null;
+        int position = 0;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            /* like XPath, unprefixed names only match elements without namespace */
+            if (child.getNodeType() == Node.ELEMENT_NODE && child.getNamespaceURI() == null &&
+                name.equals(child.getLocalName() == null ? child.getNodeName() : child.getLocalName()))
+            {
+                if (index == 0)
+                {
+                    if (found == null)
+                    {
+                        found = new ArrayList<Node>();
+                    }
+                    found.add(child);
+                }
+                else if (++position == index)
+                {
+                    return new XmlTool(child);
+                }
+            }
+        }
+        return found == null ? null : new XmlTool(found);
+    }
+
 
     /**
      * Asks {@link #get(Object)} for a "name" result.
@@ -424,6 +737,23 @@ public class XmlTool extends SafeConfig implements Serializable
         return new NodeIterator(nodes.iterator());
     }
 
+    /**
+     * Returns an {@link Iterator} that returns the same {@link XmlTool}
+     * cursor for each {@link Node} held internally by this instance,
+     * its node being changed at each step. This avoids allocating a new
+     * wrapper for each node when iterating over large node lists, as in
+     * <code>#foreach($item in $feed.item.cursor())</code>, but the returned
+     * tool must not be kept beyond the current iteration step.
+     */
+    public Iterator<XmlTool> cursor()
+    {
+        if (isEmpty())
+        {
+            return null;
+        }
+        return new CursorIterator(nodes.iterator());
+    }
+
     /**
      * Returns an {@link XmlTool} that wraps only the
      * first {@link Node} from this instance's internal Node list.
@@ -518,6 +848,16 @@ public class XmlTool extends SafeConfig implements Serializable
         {
             xpath = "//"+xpath;
         }
+        if (nodes.size() == 1)
+        {
+            /* no need to copy the found nodes */
+            NodeList lst = XmlUtils.search(xpath, nodes.get(0));
+            if (lst == null || lst.getLength() == 0)
+            {
+                return null;
+            }
+            return new XmlTool(new NodeListView(lst));
+        }
         List<Node> found = new ArrayList<Node>();
         for (Node n : nodes)
         {
@@ -572,7 +912,8 @@ public class XmlTool extends SafeConfig implements Serializable
         {
             return getParent();
         }
-        List<Node> parents = new ArrayList<Node>(size());
+        List<Node> parents = new ArrayList<Node>();
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<Node,Boolean>());
         for (Node n : nodes)
         {
             Element parent = null;
@@ -584,7 +925,7 @@ public class XmlTool extends SafeConfig implements Serializable
             {
                 parent = ((Attr) n).getOwnerElement();
             }
-            if (parent != null && !parents.contains(parent))
+            if (parent != null && seen.add(parent))
             {
                 parents.add(parent);
             }
@@ -607,12 +948,16 @@ public class XmlTool extends SafeConfig implements Serializable
         {
             return null;
         }
-        List<Node> kids = new ArrayList<Node>();
+        List<Node> kids = null;
         for (Node n : nodes)
         {
             if (n instanceof Element)
             {
                 NodeList lst = n.getChildNodes();
+                if (kids == null)
+                {
+                    kids = new ArrayList<Node>(lst.getLength());
+                }
                 for (int i = 0; i < lst.getLength(); ++i)
                 {
                     Node child = lst.item(i);
@@ -628,7 +973,7 @@ public class XmlTool extends SafeConfig implements Serializable
                 }
             }
         }
-        return new XmlTool(kids);
+        return new XmlTool(kids == null ? Collections.<Node>emptyList() : kids);
     }
 
     /**
@@ -717,4 +1062,306 @@ public class XmlTool extends SafeConfig implements Serializable
             i.remove();
         }
     }
+
+    /**
+     * Iterator implementation that wraps a Node list iterator
+     * to return the same XmlTool cursor for each item in the wrapped
+     * iterator.
+     */
+    public static class CursorIterator implements Iterator<XmlTool>
+    {
+        private Iterator<Node> i;
+        private Node[] current = new Node[1];
+        private XmlTool cursor = new XmlTool(Arrays.asList(current));
+
+        public CursorIterator(Iterator<Node> i)
+        {
+            this.i = i;
+        }
+
+        public boolean hasNext()
+        {
+            return i.hasNext();
+        }
+
+        public XmlTool next()
+        {
+            /* the cursor nodes list is backed by the current array */
+            current[0] = i.next();
+            return cursor;
+        }
+
+        public void remove()
+        {
+            i.remove();
+        }
+    }
+
+    /**
+     * Read-only List view of a {@link NodeList}.
+     */
+    protected static class NodeListView extends AbstractList<Node> implements RandomAccess
+    {
+        private NodeList list;
+
+        public NodeListView(NodeList list)
+        {
+            this.list = list;
+        }
+
+        public Node get(int index)
+        {
+            if (index < 0 || index >= list.getLength())
+            {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return list.item(index);
+        }
+
+        public int size()
+        {
+            return list.getLength();
+        }
+    }
+
+    /**
+     * Iterator returning a new {@link XmlTool} instance for each
+     * record of an XML stream, as returned by {@link #stream(String, String)}.
+     */
+    public static class StreamIterator implements Iterator<XmlTool>, Closeable
+    {
+        private static final Logger LOG = LoggerFactory.getLogger(StreamIterator.class);
+
+        private Reader source;
+        private XMLStreamReader reader;
+        private final String[] steps;
+        private final boolean anyDepth;
+        private final List<String> names = new ArrayList<String>();
+        private Element next = null;
+
+        /**
+         * @param source XML source
+         * @param path path of records
+         * @throws XMLStreamException if the stream could not be opened
+         */
+        public StreamIterator(Reader source, String path) throws XMLStreamException
+        {
+            if (path.startsWith("//"))
+            {
+                steps = new String[] { path.substring(2) };
+                anyDepth = true;
+            }
+            else
+            {
+                steps = (path.startsWith("/") ? path.substring(1) : path).split("/");
+                anyDepth = false;
+            }
+            this.source = source;
+            this.reader = XmlUtils.createXMLStreamReader(source);
+        }
+
+        public boolean hasNext()
+        {
+            if (next == null && reader != null)
+            {
+                try
+                {
+                    next = advance();
+                }
+                catch (XMLStreamException xse)
+                {
+                    LOG.error("could not read XML stream", xse);
+                }
+                if (next == null)
+                {
+                    close();
+                }
+            }
+            return next != null;
+        }
+
+        public XmlTool next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            XmlTool record = new XmlTool(next);
+            next = null;
+            return record;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Closes the underlying stream, in case the iteration is not complete.
+         */
+        public void close()
+        {
+            if (reader != null)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (XMLStreamException xse) {}
+                reader = null;
+            }
+            if (source != null)
+            {
+                try
+                {
+                    source.close();
+                }
+                catch (IOException ioe) {}
+                source = null;
+            }
+        }
+
+        private Element advance() throws XMLStreamException
+        {
+            while (reader.hasNext())
+            {
+                switch (reader.next())
+                {
+                    case XMLStreamConstants.START_ELEMENT:
+                        names.add(reader.getLocalName());
+                        if (matches())
+                        {
+                            Element record = readRecord();
+                            names.remove(names.size() - 1);
+                            if (record != null)
+                            {
+                                return record;
+                            }
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        names.remove(names.size() - 1);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return null;
+        }
+
+        private boolean matches()
+        {
+            if (anyDepth)
+            {
+                return steps[0].equals(names.get(names.size() - 1));
+            }
+            if (names.size() != steps.length)
+            {
+                return false;
+            }
+            for (int i = 0; i < steps.length; ++i)
+            {
+                if (!"*".equals(steps[i]) && !steps[i].equals(names.get(i)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Builds the DOM subtree of the current element, consuming its events.
+         */
+        private Element readRecord() throws XMLStreamException
+        {
+            Document document = XmlUtils.newDocument();
+            if (document == null)
+            {
+                return null;
+            }
+            Element record = createElement(document);
+            document.appendChild(record);
+            Node parent = record;
+            int depth = 1;
+            while (depth > 0)
+            {
+                switch (reader.next())
+                {
+                    case XMLStreamConstants.START_ELEMENT:
+                        Element element = createElement(document);
+                        parent.appendChild(element);
+                        parent = element;
+                        ++depth;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        parent = parent.getParentNode();
+                        --depth;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        parent.appendChild(document.createTextNode(reader.getText()));
+                        break;
+                    case XMLStreamConstants.CDATA:
+                        parent.appendChild(document.createCDATASection(reader.getText()));
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        parent.appendChild(document.createComment(reader.getText()));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return record;
+        }
+
+        private Element createElement(Document document)
+        {
+            Element element = document.createElementNS(reader.getNamespaceURI(), qualifiedName(reader.getPrefix(), reader.getLocalName()));
+            for (int i = 0; i < reader.getNamespaceCount(); ++i)
+            {
+                String prefix = reader.getNamespacePrefix(i);
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                    prefix == null || prefix.length() == 0 ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ':' + prefix,
+                    reader.getNamespaceURI(i));
+            }
+            for (int i = 0; i < reader.getAttributeCount(); ++i)
+            {
+                String namespace = reader.getAttributeNamespace(i);
+                element.setAttributeNS(namespace == null || namespace.length() == 0 ? null : namespace,
+                    qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                    reader.getAttributeValue(i));
+            }
+            return element;
+        }
+
+        private static String qualifiedName(String prefix, String localName)
+        {
+            return prefix == null || prefix.length() == 0 ? localName : prefix + ':' + localName;
+        }
+    }
+
+    /**
+     * Cached parsed document. The cached DOM is never exposed:
+     * since DOM implementations don't guarantee thread-safe
+     * reads, copies are made while holding the document lock.
+     */
+    private static class CachedDocument
+    {
+        private final Document document;
+        private final long lastModified;
+
+        private CachedDocument(Document document, long lastModified)
+        {
+            this.document = document;
+            this.lastModified = lastModified;
+        }
+
+        private Node copy()
+        {
+            synchronized (document)
+            {
+                return document.cloneNode(true);
+            }
+        }
+    }
 }
@@ -0,0 +1,189 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for CollectionTool sorting</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class CollectionToolTests
+{
+    public static class Person
+    {
+        private final String lastName;
+        private final int age;
+        private final Double score;
+        private final Comparable rank;
+
+        public Person(String lastName, int age, Double score, Comparable rank)
+        {
+            this.lastName = lastName;
+            this.age = age;
+            this.score = score;
+            this.rank = rank;
+        }
+
+        public String getLastName()
+        {
+            return lastName;
+        }
+
+        public int getAge()
+        {
+            return age;
+        }
+
+        public Double getScore()
+        {
+            return score;
+        }
+
+        public Comparable getRank()
+        {
+            return rank;
+        }
+
+        public String toString()
+        {
+            return lastName + "/" + age + "/" + score + "/" + rank;
+        }
+    }
+
+    public static class Other
+    {
+        public String getLastName()
+        {
+            return "Zorro";
+        }
+    }
+
+    private List<Person> people(int count, long seed)
+    {
+        Random random = new Random(seed);
+        String[] names = { "smith", "Smith", "jones", "Brown", "brown", "Taylor" };
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < count; ++i)
+        {
+            people.add(new Person(names[random.nextInt(names.length)], random.nextInt(10) - 5,
+                random.nextInt(5) / 2.0, random.nextBoolean() ? (Comparable)Long.valueOf(random.nextInt(3)) : (Comparable)Long.valueOf(-1)));
+        }
+        return people;
+    }
+
+    private List<?> reference(List<?> list, List<String> properties)
+    {
+        List<Object> sorted = new ArrayList<Object>(list);
+        Collections.sort(sorted, new CollectionTool.PropertiesComparator(properties));
+        return sorted;
+    }
+
+    public @Test void testSortProperties() throws Exception
+    {
+        CollectionTool tool = new CollectionTool();
+        List<List<String>> sorts = new ArrayList<List<String>>();
+        sorts.add(Arrays.asList("lastName"));
+        sorts.add(Arrays.asList("lastName", "age:desc"));
+        sorts.add(Arrays.asList("score:desc", "lastName:asc", "rank"));
+        sorts.add(Arrays.asList("age", "score"));
+        for (long seed = 0; seed < 10; ++seed)
+        {
+            List<Person> people = people(200, seed);
+            for (List<String> properties : sorts)
+            {
+                assertEquals(reference(people, properties), tool.sort(people, properties));
+                assertEquals(reference(people, properties), tool.sort(people.toArray(), properties));
+            }
+        }
+        List<Person> people = people(10, 42);
+        assertEquals(reference(people, Arrays.asList("age:desc")), tool.sort(people, "age:desc"));
+    }
+
+    public @Test void testSortMaps() throws Exception
+    {
+        CollectionTool tool = new CollectionTool();
+        List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>();
+        for (int i = 0; i < 5; ++i)
+        {
+            Map<String,Object> map = new HashMap<String,Object>();
+            map.put("value", (i * 3) % 5);
+            maps.add(map);
+        }
+        Collection sorted = tool.sort(maps, "value:desc");
+        List<Object> values = new ArrayList<Object>();
+        for (Object map : sorted)
+        {
+            values.add(((Map)map).get("value"));
+        }
+        assertEquals(Arrays.<Object>asList(4, 3, 2, 1, 0), values);
+    }
+
+    public @Test void testSortErrors() throws Exception
+    {
+        CollectionTool tool = new CollectionTool();
+        List<Object> mixed = new ArrayList<Object>();
+        mixed.add(new Person("Adams", 1, 1.0, 1L));
+        mixed.add(new Other());
+        /* secondary properties are only needed for ties */
+        assertEquals(mixed, tool.sort(mixed, Arrays.asList("lastName", "age")));
+        mixed.add(new Other());
+        assertNull(tool.sort(mixed, Arrays.asList("lastName", "age")));
+        /* a single element is never compared */
+        assertEquals(Arrays.asList(new Object[] { mixed.get(1) }), tool.sort(mixed.subList(1, 2), "missing"));
+        assertNull(tool.sort(mixed.subList(0, 2), "missing"));
+    }
+
+    public @Test void testTopAndPage() throws Exception
+    {
+        CollectionTool tool = new CollectionTool();
+        List<String> properties = Arrays.asList("score:desc", "lastName");
+        for (long seed = 0; seed < 5; ++seed)
+        {
+            List<Person> people = people(300, seed);
+            List<?> sorted = reference(people, properties);
+            for (int count : new int[] { 0, 1, 10, 149, 150, 300, 500 })
+            {
+                assertEquals(sorted.subList(0, Math.min(count, sorted.size())), tool.top(people, properties, count));
+            }
+            assertEquals(sorted.subList(20, 30), tool.page(people.toArray(), properties, 20, 10));
+            assertEquals(sorted.subList(290, 300), tool.page(people, properties, 290, 50));
+            assertEquals(0, tool.page(people, properties, 300, 10).size());
+        }
+        List<Person> people = people(50, 7);
+        assertEquals(reference(people, Arrays.asList("age:desc")).subList(0, 5), tool.top(people, "age:desc", 5));
+        assertNull(tool.top("not a collection", "age", 5));
+        assertNull(tool.top(Arrays.asList(new Other(), new Other()), "age", 1));
+    }
+}
@@ -23,17 +23,22 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.TimeZone;
 //import org.apache.velocity.tools.generic.DateTool;
+import org.apache.velocity.tools.ConversionUtils;
 
 /**
  * <p>Tests for DateToolTests</p>
@@ -104,4 +109,86 @@ public class DateToolTests
         assertEquals("DateTool incorrectly formatted iso format", new SimpleDateFormat("HH:mm:ssXXX").format(date), dt.format("iso_tz_time",date));
         assertEquals("DateTool incorrectly formatted iso format", new SimpleDateFormat("HH:mm:ss").format(date) + " Europe/Paris", dt.format("intl_tz_time",date));
     }
+
+    public @Test void getCachedDateFormat() throws Exception
+    {
+        TimeZone paris = TimeZone.getTimeZone("Europe/Paris");
+        TimeZone tokyo = TimeZone.getTimeZone("Asia/Tokyo");
+        DateFormat df = ConversionUtils.getCachedDateFormat("yyyy-MM-dd HH:mm", Locale.FRANCE, paris);
+        assertSame(df, ConversionUtils.getCachedDateFormat("yyyy-MM-dd HH:mm", Locale.FRANCE, paris));
+        assertNotSame(df, ConversionUtils.getCachedDateFormat("yyyy-MM-dd HH:mm", Locale.FRANCE, tokyo));
+        assertNotSame(df, ConversionUtils.getCachedDateFormat("yyyy-MM-dd HH:mm", Locale.US, paris));
+        assertSame(ConversionUtils.getCachedDateFormat("iso", "iso", Locale.US, paris), ConversionUtils.getCachedDateFormat("ISO", "ISO", Locale.US, paris));
+
+        /* the iso timestamp format must not be shared among time zones */
+        DateFormat isoParis = ConversionUtils.getDateFormat("iso", Locale.US, paris);
+        DateFormat isoTokyo = ConversionUtils.getDateFormat("iso", Locale.US, tokyo);
+        assertNotSame(isoParis, isoTokyo);
+        assertEquals(paris, isoParis.getTimeZone());
+    }
+
+    public @Test void format_CustomFormats() throws Exception
+    {
+        /* subclasses overriding the DateFormat creation methods are honoured */
+        DateTool dt = new DateTool()
+        {
+            public DateFormat getDateFormat(String format, Locale locale, TimeZone timezone)
+            {
+                return new SimpleDateFormat("'custom' yyyy", locale);
+            }
+
+            public DateFormat getDateFormat(String dateStyle, String timeStyle, Locale locale, TimeZone timezone)
+            {
+                return new SimpleDateFormat("'styled' yyyy", locale);
+            }
+        };
+        Date date = new SimpleDateFormat("yyyy-MM-dd").parse("2012-05-01");
+        assertEquals("custom 2012", dt.format("yyyy-MM-dd", date, Locale.US, TimeZone.getDefault()));
+        assertEquals("styled 2012", dt.format("short", "short", date, Locale.US, TimeZone.getDefault()));
+        assertEquals("2012-05-01", new DateTool().format("yyyy-MM-dd", date, Locale.US, TimeZone.getDefault()));
+    }
+
+    public @Test void format_Concurrent() throws Exception
+    {
+        final DateTool dt = new DateTool();
+        final String[] zones = { "UTC", "Europe/Paris", "Asia/Tokyo", "America/New_York" };
+        final Date date = new Date(1234567890123l);
+        final String[] expected = new String[zones.length];
+        for (int z = 0; z < zones.length; ++z)
+        {
+            SimpleDateFormat reference = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+            reference.setTimeZone(TimeZone.getTimeZone(zones[z]));
+            expected[z] = reference.format(date);
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; ++t)
+        {
+            final int offset = t;
+            Thread thread = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < 2000; ++i)
+                    {
+                        int z = (i + offset) % zones.length;
+                        TimeZone timezone = TimeZone.getTimeZone(zones[z]);
+                        if (!expected[z].equals(dt.format("iso", date, Locale.US, timezone)) ||
+                            !expected[z].equals(dt.format("yyyy-MM-dd'T'HH:mm:ss", date, Locale.US, timezone)) ||
+                            !date.equals(dt.toDate("yyyy-MM-dd'T'HH:mm:ss.SSS", dt.format("yyyy-MM-dd'T'HH:mm:ss.SSS", date, Locale.US, timezone), Locale.US, timezone)))
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+    }
 }
@@ -0,0 +1,195 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.resource.loader.StringResourceLoader;
+import org.apache.velocity.runtime.resource.util.StringResourceRepository;
+import org.apache.velocity.tools.Scope;
+import org.apache.velocity.tools.ToolContext;
+import org.apache.velocity.tools.ToolManager;
+import org.apache.velocity.tools.config.FactoryConfiguration;
+import org.apache.velocity.tools.config.ToolConfiguration;
+import org.apache.velocity.tools.config.ToolboxConfiguration;
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link EscapeTool}, {@link Escaper} and {@link AutoEscapeReference}</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class EscapeToolTests
+{
+    private static final String[] NAMES = { "html", "xml", "javascript" };
+    private static final Escaper[] ESCAPERS = { Escaper.HTML, Escaper.XML, Escaper.JAVASCRIPT };
+
+    private static String reference(int escaper, String string)
+    {
+        switch (escaper)
+        {
+            case 0: return StringEscapeUtils.escapeHtml4(string);
+            case 1: return StringEscapeUtils.escapeXml10(string);
+            default: return StringEscapeUtils.escapeEcmaScript(string);
+        }
+    }
+
+    private static void check(int escaper, String string) throws Exception
+    {
+        String expected = reference(escaper, string);
+        String message = NAMES[escaper] + " escaping of " + StringEscapeUtils.escapeJava(string);
+        assertEquals(message, expected, ESCAPERS[escaper].escape(string));
+        StringWriter writer = new StringWriter();
+        ESCAPERS[escaper].escape(string, writer);
+        assertEquals(message, expected, writer.toString());
+    }
+
+    public @Test void testEscape() throws Exception
+    {
+        EscapeTool esc = new EscapeTool();
+        assertEquals("&lt;a href=&quot;x&quot;&gt;&eacute;&amp;&euro;&lt;/a&gt;", esc.html("<a href=\"x\">é&€</a>"));
+        assertEquals("&lt;a&gt;&apos;&#128;&lt;/a&gt;", esc.xml("<a>'\u0080\u0001</a>"));
+        assertEquals("\\'\\\"\\\\\\/\\n\\u00E9", esc.javascript("'\"\\/\né"));
+        assertNull(esc.html(null));
+        assertNull(esc.htmlStream(null));
+        StringWriter writer = new StringWriter();
+        esc.htmlStream("a<b").render(null, writer);
+        esc.xmlStream(">").render(null, writer);
+        esc.javascriptStream("\t").render(null, writer);
+        assertEquals("a&lt;b&gt;\\t", writer.toString());
+        assertEquals("a&lt;b", esc.htmlStream("a<b").toString());
+
+        /* strings without any character to escape are returned as is */
+        String plain = "nothing to escape here";
+        for (Escaper escaper : ESCAPERS)
+        {
+            assertSame(plain, escaper.escape(plain));
+        }
+    }
+
+    public @Test void testEscape_AllChars() throws Exception
+    {
+        for (int escaper = 0; escaper < ESCAPERS.length; ++escaper)
+        {
+            for (int c = 0; c <= Character.MAX_VALUE; ++c)
+            {
+                check(escaper, "a" + (char)c + "b");
+            }
+        }
+    }
+
+    public @Test void testEscape_RandomStrings() throws Exception
+    {
+        Random random = new Random(48);
+        char[] specials = { '<', '>', '&', '"', '\'', '/', '\\', '\n', '\u0000', '\u007f', '\u0085', '\u00e9', '\u20ac', '\ufffe', '\uffff', '\ud83d', '\ude00' };
+        for (int i = 0; i < 5000; ++i)
+        {
+            StringBuilder builder = new StringBuilder();
+            int length = random.nextInt(20);
+            for (int j = 0; j < length; ++j)
+            {
+                switch (random.nextInt(3))
+                {
+                    case 0: builder.append((char)('a' + random.nextInt(26))); break;
+                    case 1: builder.append(specials[random.nextInt(specials.length)]); break;
+                    default: builder.append((char)random.nextInt(Character.MAX_VALUE + 1)); break;
+                }
+            }
+            for (int escaper = 0; escaper < ESCAPERS.length; ++escaper)
+            {
+                check(escaper, builder.toString());
+            }
+        }
+    }
+
+    private static String merge(VelocityEngine engine, ToolManager manager, String name) throws Exception
+    {
+        ToolContext context = manager.createContext();
+        context.put("text", "<b>'bold'</b>");
+        context.put("number", 3);
+        Template template = engine.getTemplate(name);
+        StringWriter writer = new StringWriter();
+        template.merge(context, writer);
+        return writer.toString();
+    }
+
+    public @Test void testAutoEscape() throws Exception
+    {
+        VelocityEngine engine = new VelocityEngine();
+        engine.setProperty("resource.loader", "string");
+        engine.setProperty("string.resource.loader.class", StringResourceLoader.class.getName());
+        engine.setProperty("string.resource.loader.repository.name", "autoEscape");
+        engine.setProperty("eventhandler.referenceinsertion.class", AutoEscapeReference.class.getName());
+        engine.setProperty(AutoEscapeReference.RULES_PROPERTY, "*.js.vm=javascript, raw/*=none");
+        engine.init();
+        StringResourceRepository repository = StringResourceLoader.getRepository("autoEscape");
+        String body = "$text $number $esc.html($text) $esc.raw($text)";
+        repository.putStringResource("page.vm", body);
+        repository.putStringResource("script.js.vm", body);
+        repository.putStringResource("raw/page.vm", body);
+        repository.putStringResource("include.vm", "#parse('script.js.vm') $text");
+        repository.putStringResource("stream.vm", "$render.stream('<i>$text</i>')");
+        repository.putStringResource("escstream.vm", "$esc.htmlStream($text)");
+        repository.putStringResource("calls.vm", "$esc.unurl('%3Cb%3E') $esc.javascript('<b>') ${esc.html($text)} $esc.html($text).replace('&lt;', '<')");
+        repository.putStringResource("calls.js.vm", "$esc.javascript($text)");
+
+        FactoryConfiguration config = new FactoryConfiguration();
+        ToolboxConfiguration toolbox = new ToolboxConfiguration();
+        toolbox.setScope(Scope.APPLICATION);
+        ToolConfiguration tool = new ToolConfiguration();
+        tool.setClass(EscapeTool.class);
+        toolbox.addTool(tool);
+        tool = new ToolConfiguration();
+        tool.setClass(RenderTool.class);
+        toolbox.addTool(tool);
+        config.addToolbox(toolbox);
+        ToolManager manager = new ToolManager(false, false);
+        manager.configure(config);
+        manager.setVelocityEngine(engine);
+
+        assertEquals("&lt;b&gt;'bold'&lt;/b&gt; 3 &lt;b&gt;'bold'&lt;/b&gt; <b>'bold'</b>", merge(engine, manager, "page.vm"));
+        assertEquals("<b>\\'bold\\'<\\/b> 3 &lt;b&gt;\\'bold\\'&lt;\\/b&gt; <b>'bold'</b>", merge(engine, manager, "script.js.vm"));
+        assertEquals("<b>'bold'</b> 3 &lt;b&gt;'bold'&lt;/b&gt; <b>'bold'</b>", merge(engine, manager, "raw/page.vm"));
+        assertEquals("<b>\\'bold\\'<\\/b> 3 &lt;b&gt;\\'bold\\'&lt;\\/b&gt; <b>'bold'</b> &lt;b&gt;'bold'&lt;/b&gt;", merge(engine, manager, "include.vm"));
+
+        /* only calls to the escaper of the template are not escaped twice */
+        assertEquals("&lt;b&gt; &lt;b&gt; &lt;b&gt;'bold'&lt;/b&gt; &lt;b&amp;gt;'bold'&lt;/b&amp;gt;", merge(engine, manager, "calls.vm"));
+        assertEquals("<b>\\'bold\\'<\\/b>", merge(engine, manager, "calls.js.vm"));
+
+        /* renderables are not escaped, only the references they evaluate */
+        assertEquals("<i>&lt;b&gt;'bold'&lt;/b&gt;</i>", merge(engine, manager, "stream.vm"));
+        assertEquals("&lt;b&gt;'bold'&lt;/b&gt;", merge(engine, manager, "escstream.vm"));
+
+        /* rules given by the tools configuration have precedence */
+        config.setProperty(AutoEscapeReference.RULES_KEY, "*.vm=xml");
+        manager.configure(config);
+        assertEquals("&lt;b&gt;&apos;bold&apos;&lt;/b&gt; 3 &amp;lt;b&amp;gt;&apos;bold&apos;&amp;lt;/b&amp;gt; <b>'bold'</b>", merge(engine, manager, "page.vm"));
+    }
+}
@@ -0,0 +1,334 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.tools.Scope;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link ImportTool}, using an embedded HTTP server</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class ImportToolTests
+{
+    private static HttpServer server;
+    private static String baseURL;
+    private static String bigContent;
+    private static Map<String,AtomicInteger> hits = new HashMap<String,AtomicInteger>();
+
+    public @BeforeClass static void startServer() throws Exception
+    {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 10000; ++i)
+        {
+            big.append("line ").append(i).append('\n');
+        }
+        bigContent = big.toString();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/hello", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                respond(exchange, "Hello world!");
+            }
+        });
+        server.createContext("/big", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                respond(exchange, bigContent);
+            }
+        });
+        server.createContext("/accents", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                respond(exchange, accents());
+            }
+        });
+        server.createContext("/slow", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    Thread.sleep(2000);
+                }
+                catch (InterruptedException ie) {}
+                respond(exchange, "too late");
+            }
+        });
+        server.createContext("/cached", new CountingHandler("max-age=60", "cached"));
+        server.createContext("/bigcached", new CountingHandler("max-age=60", bigContent));
+        server.createContext("/nostore", new CountingHandler("no-store", "not stored"));
+        server.createContext("/prefetched", new CountingHandler("no-store", "prefetched"));
+        server.createContext("/etag", new CountingHandler("no-cache", "validated")
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+                {
+                    hits("/etag/304").incrementAndGet();
+                    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                }
+                else
+                {
+                    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                    super.handle(exchange);
+                }
+            }
+        });
+        server.createContext("/delayed", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    Thread.sleep(500);
+                }
+                catch (InterruptedException ie) {}
+                respond(exchange, exchange.getRequestURI().getQuery());
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseURL = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public @AfterClass static void stopServer()
+    {
+        server.stop(0);
+    }
+
+    static synchronized AtomicInteger hits(String path)
+    {
+        AtomicInteger counter = hits.get(path);
+        if (counter == null)
+        {
+            counter = new AtomicInteger();
+            hits.put(path, counter);
+        }
+        return counter;
+    }
+
+    static class CountingHandler implements HttpHandler
+    {
+        private final String cacheControl;
+        private final String content;
+
+        CountingHandler(String cacheControl, String content)
+        {
+            this.cacheControl = cacheControl;
+            this.content = content;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            hits(exchange.getRequestURI().getPath()).incrementAndGet();
+            exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+            respond(exchange, content);
+        }
+    }
+
+    static void respond(HttpExchange exchange, String content) throws IOException
+    {
+        byte[] bytes = content.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    static String accents()
+    {
+        StringBuilder accents = new StringBuilder();
+        for (int i = 0; i < 600; ++i)
+        {
+            accents.append('\u00e9');
+        }
+        return accents.toString();
+    }
+
+    private ImportTool importTool(Map config)
+    {
+        ImportTool importTool = new ImportTool();
+        importTool.configure(config);
+        return importTool;
+    }
+
+    public @Test void testFetch() throws Exception
+    {
+        ImportTool importTool = importTool(new HashMap());
+        assertEquals("Hello world!", importTool.fetch(baseURL + "/hello"));
+        assertEquals(bigContent, importTool.fetch(baseURL + "/big"));
+    }
+
+    public @Test void testMaxContentLength() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(ImportSupport.MAX_CONTENT_LENGTH_KEY, "1000");
+        ImportTool importTool = importTool(config);
+        assertEquals("Hello world!", importTool.fetch(baseURL + "/hello"));
+        assertNull(importTool.fetch(baseURL + "/big"));
+        /* the limit is in bytes: 600 chars encoded in UTF-8 as 1200 bytes */
+        assertNull(importTool.fetch(baseURL + "/accents"));
+        config.put(ImportSupport.MAX_CONTENT_LENGTH_KEY, "1200");
+        assertEquals(accents(), importTool(config).fetch(baseURL + "/accents"));
+    }
+
+    public @Test void testReadTimeout() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(ImportSupport.READ_TIMEOUT_KEY, "200");
+        ImportTool importTool = importTool(config);
+        assertNull(importTool.fetch(baseURL + "/slow"));
+    }
+
+    public @Test void testStream() throws Exception
+    {
+        VelocityEngine engine = new VelocityEngine();
+        VelocityContext context = new VelocityContext();
+        context.put("import", importTool(new HashMap()));
+        context.put("url", baseURL + "/big");
+        StringWriter writer = new StringWriter();
+        engine.evaluate(context, writer, "test", "$import.stream($url)");
+        assertEquals(bigContent, writer.toString());
+    }
+
+    public @Test void testHttpCache() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(ImportSupport.HTTP_CACHE_KEY, "true");
+        ImportTool importTool = importTool(config);
+        for (int i = 0; i < 3; ++i)
+        {
+            assertEquals("cached", importTool.fetch(baseURL + "/cached"));
+            assertEquals("not stored", importTool.fetch(baseURL + "/nostore"));
+            assertEquals("validated", importTool.fetch(baseURL + "/etag"));
+        }
+        assertEquals(1, hits("/cached").get());
+        assertEquals(3, hits("/nostore").get());
+        assertEquals(1, hits("/etag").get());
+        assertEquals(2, hits("/etag/304").get());
+
+        /* the cache is shared among tools */
+        assertEquals("cached", importTool(config).fetch(baseURL + "/cached"));
+        assertEquals(1, hits("/cached").get());
+    }
+
+    public @Test void testHttpCacheOverflow() throws Exception
+    {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "velocity-tools-http-cache-test");
+        directory.mkdirs();
+        /* files not owned by the cache are left alone */
+        File foreign = new File(directory, "foreign.httpcache");
+        foreign.createNewFile();
+        Map config = new HashMap();
+        config.put(ImportSupport.HTTP_CACHE_KEY, "true");
+        config.put(ImportSupport.HTTP_CACHE_SIZE_KEY, "1000");
+        config.put(ImportSupport.HTTP_CACHE_DIRECTORY_KEY, directory.getAbsolutePath());
+        ImportTool importTool = importTool(config);
+        File subdirectory = new File(directory, HttpResponseCache.SUBDIRECTORY);
+        assertEquals(bigContent, importTool.fetch(baseURL + "/bigcached"));
+        assertEquals(1, subdirectory.list().length);
+        assertEquals(bigContent, importTool.fetch(baseURL + "/bigcached"));
+        assertEquals(1, hits("/bigcached").get());
+        HttpResponseCache.getInstance(1000, directory, ImportSupport.DEFAULT_HTTP_CACHE_DISK_SIZE).clear();
+        assertEquals(0, subdirectory.list().length);
+        assertTrue(foreign.exists());
+        subdirectory.delete();
+        foreign.delete();
+        directory.delete();
+    }
+
+    public @Test void testPrefetch() throws Exception
+    {
+        VelocityEngine engine = new VelocityEngine();
+        VelocityContext context = new VelocityContext();
+        context.put("import", importTool(new HashMap()));
+        context.put("base", baseURL + "/delayed?");
+        StringWriter writer = new StringWriter();
+        long start = System.currentTimeMillis();
+        engine.evaluate(context, writer, "test",
+            "$import.prefetch(\"${base}a\", \"${base}b\", \"${base}c\", \"${base}d\")" +
+            "$import.fetch(\"${base}a\")$import.fetch(\"${base}b\")$import.fetch(\"${base}c\")$import.fetch(\"${base}d\")");
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals("abcd", writer.toString());
+        assertTrue("prefetched URLs were not fetched concurrently", elapsed < 1500);
+    }
+
+    public @Test void testPrefetchDeadline() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(ImportSupport.PREFETCH_TIMEOUT_KEY, "100");
+        ImportTool importTool = importTool(config);
+        long start = System.currentTimeMillis();
+        importTool.prefetch(baseURL + "/delayed?late");
+        /* past the deadline, fetch() gives up on the URL */
+        assertNull(importTool.fetch(baseURL + "/delayed?late"));
+        assertTrue("prefetch deadline was not enforced", System.currentTimeMillis() - start < 400);
+    }
+
+    public @Test void testPrefetchConsumedOnce() throws Exception
+    {
+        ImportTool importTool = importTool(new HashMap());
+        importTool.prefetch(baseURL + "/prefetched");
+        assertEquals("prefetched", importTool.fetch(baseURL + "/prefetched"));
+        /* a prefetched result is only used once */
+        assertEquals("prefetched", importTool.fetch(baseURL + "/prefetched"));
+        assertEquals(2, hits("/prefetched").get());
+
+        /* prefetching is ignored outside of the request scope */
+        Map config = new HashMap();
+        config.put("scope", Scope.APPLICATION);
+        importTool = importTool(config);
+        importTool.prefetch(baseURL + "/prefetched");
+        Thread.sleep(100);
+        assertEquals(2, hits("/prefetched").get());
+    }
+}
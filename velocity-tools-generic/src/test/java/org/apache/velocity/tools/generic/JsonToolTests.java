@@ -19,13 +19,32 @@ package org.apache.velocity.tools.generic;
  * under the License.
  */
 
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
 import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * <p>Tests for {@link JsonTool}</p>
@@ -46,4 +65,237 @@ public class JsonToolTests
         assertEquals(jsonTool.get("foo"), "bar");
         assertEquals(jsonTool.get("array").getClass(), JSONArray.class);
     }
+
+    private static final String JSON_OBJECT =
+        "{ \"s\": \"a\\\"b\\u00e9\\n\", \"i\": 42, \"l\": 12345678901, \"d\": -1.5e3, " +
+        "\"t\": true, \"n\": null, \"o\": { \"a/b\": [ 1, { \"x\": \"y\" }, [] ] }, \"e\": {} }";
+
+    private JsonTool jsonTool(boolean lazy, String json)
+    {
+        Map config = new HashMap();
+        config.put(JsonTool.LAZY_KEY, String.valueOf(lazy));
+        JsonTool jsonTool = new JsonTool();
+        jsonTool.configure(config);
+        jsonTool.parse(json);
+        return jsonTool;
+    }
+
+    public @Test void testLazy() throws Exception
+    {
+        JsonTool eager = jsonTool(false, JSON_OBJECT);
+        JsonTool lazy = jsonTool(true, JSON_OBJECT);
+        assertTrue(lazy.root() instanceof Map);
+        assertEquals(eager.length(), lazy.length());
+        assertEquals(eager.keySet(), lazy.keySet());
+        for (String key : eager.keySet())
+        {
+            Object value = eager.get(key);
+            if (value instanceof JSONObject || value instanceof JSONArray)
+            {
+                continue;
+            }
+            assertEquals("key " + key, value, lazy.get(key));
+        }
+        assertNull(lazy.get("missing"));
+        String[] pointers = { "/s", "/i", "/o/a~1b/0", "/o/a~1b/1/x", "#/o/a~1b/1/x", "/o/a~1b/3", "/missing/x" };
+        for (String pointer : pointers)
+        {
+            assertEquals(pointer, ((JSONObject)eager.root()).optQuery(pointer), lazy.query(pointer));
+        }
+        assertEquals(0, ((List)lazy.query("/o/a~1b/2")).size());
+        assertEquals(0, ((Map)lazy.get("e")).size());
+        assertEquals("{ \"x\": \"y\" }", lazy.query("/o/a~1b/1").toString());
+        assertEquals(new JSONObject(JSON_OBJECT).similar(new JSONObject(lazy.toString())), true);
+    }
+
+    public @Test void testLazyArray() throws Exception
+    {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 1000; ++i)
+        {
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item").append(i).append("\"}");
+        }
+        json.append("]");
+        JsonTool lazy = jsonTool(true, json.toString());
+        assertEquals(1000, lazy.length());
+        assertEquals("item10", ((Map)lazy.get(10)).get("name"));
+        Iterator cursor = lazy.cursor();
+        int count = 0;
+        while (cursor.hasNext())
+        {
+            assertEquals(count++, ((Map)cursor.next()).get("id"));
+        }
+        assertEquals(1000, count);
+        cursor = jsonTool(false, json.toString()).cursor();
+        assertEquals(0, ((JSONObject)cursor.next()).get("id"));
+
+        VelocityEngine engine = new VelocityEngine();
+        VelocityContext context = new VelocityContext();
+        context.put("json", jsonTool(true, "[{\"a\":{\"b\":\"c\"}},{\"a\":{\"b\":\"d\"}}]"));
+        StringWriter writer = new StringWriter();
+        engine.evaluate(context, writer, "test", "#foreach($item in $json.cursor())$item.a.b#end");
+        assertEquals("cd", writer.toString());
+    }
+
+    public @Test void testLazyErrors() throws Exception
+    {
+        assertNull(jsonTool(true, "{ \"a\": [ 1, 2 }").root());
+        assertNull(jsonTool(true, "[ 1, 2 ] x").root());
+        JsonTool lazy = jsonTool(true, "{ \"a\": tru, \"b\": 1 }");
+        assertEquals(1, lazy.get("b"));
+        try
+        {
+            lazy.get("a");
+            fail("invalid value should throw");
+        }
+        catch (JSONException je) {}
+    }
+
+    private static void writeFile(File file, String content) throws Exception
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(content);
+        writer.close();
+    }
+
+    private JsonTool configured(Map config)
+    {
+        JsonTool jsonTool = new JsonTool();
+        jsonTool.configure(config);
+        return jsonTool;
+    }
+
+    public @Test void testDocumentCache() throws Exception
+    {
+        File file = File.createTempFile("velocity-tools-cached", ".json");
+        file.deleteOnExit();
+        writeFile(file, "{ \"value\": 1 }");
+        long lastModified = file.lastModified();
+        Map config = new HashMap();
+        config.put(JsonTool.LAZY_KEY, "true");
+
+        JsonTool first = configured(config);
+        first.read(file.getAbsolutePath());
+        assertEquals(1, first.get("value"));
+
+        /* same modification date: the cached document is shared */
+        writeFile(file, "{ \"value\": 2 }");
+        file.setLastModified(lastModified);
+        JsonTool second = configured(config);
+        second.read(file.getAbsolutePath());
+        assertSame(first.root(), second.root());
+
+        /* modified file: the document is reparsed */
+        file.setLastModified(lastModified + 2000);
+        JsonTool third = configured(config);
+        third.read(file.getAbsolutePath());
+        assertEquals(2, third.get("value"));
+
+        /* fetched URLs are cached for the configured time to live */
+        String url = file.toURI().toURL().toString();
+        JsonTool fetched = configured(config);
+        fetched.fetch(url);
+        assertEquals(2, fetched.get("value"));
+        writeFile(file, "{ \"value\": 3 }");
+        fetched = configured(config);
+        fetched.fetch(url);
+        assertEquals(2, fetched.get("value"));
+        config.put(JsonTool.DOCUMENT_CACHE_TTL_KEY, "0");
+        fetched = configured(config);
+        fetched.fetch(url);
+        assertEquals(3, fetched.get("value"));
+
+        /* eager documents are not cached */
+        JsonTool eager = configured(new HashMap());
+        eager.read(file.getAbsolutePath());
+        assertTrue(eager.root() instanceof JSONObject);
+        assertEquals(3, eager.get("value"));
+        file.delete();
+    }
+
+    public @Test void testCompiledPointers() throws Exception
+    {
+        assertSame(LazyJson.compile("/o/a~1b/1/x"), LazyJson.compile("/o/a~1b/1/x"));
+        JsonTool eager = jsonTool(false, JSON_OBJECT);
+        JsonTool lazy = jsonTool(true, JSON_OBJECT);
+        for (int i = 0; i < 3; ++i)
+        {
+            assertEquals("y", eager.query("/o/a~1b/1/x"));
+            assertEquals("y", lazy.query("/o/a~1b/1/x"));
+            assertEquals(1, lazy.query("/o/a~1b/0"));
+            assertEquals(lazy.root(), lazy.query(""));
+        }
+    }
+
+    public static class Product
+    {
+        private final String name;
+        private final BigDecimal price;
+        private final List<String> tags;
+
+        public Product(String name, BigDecimal price, List<String> tags)
+        {
+            this.name = name;
+            this.price = price;
+            this.tags = tags;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public BigDecimal getPrice()
+        {
+            return price;
+        }
+
+        public List<String> getTags()
+        {
+            return tags;
+        }
+
+        public boolean isAvailable()
+        {
+            return true;
+        }
+    }
+
+    public @Test void testStringify() throws Exception
+    {
+        JsonTool jsonTool = configured(new HashMap());
+        Map<String,Object> map = new LinkedHashMap<String,Object>();
+        map.put("s", "quote\" backslash\\ newline\n tab\t ctrl\u0001 </script> \u2028");
+        map.put("i", 42);
+        map.put("d", 1.5);
+        map.put("nan", Double.NaN);
+        map.put("b", false);
+        map.put("n", null);
+        map.put("a", new int[] { 1, 2 });
+        map.put("l", Arrays.asList("x", null, 'c'));
+        map.put("date", new Date(0));
+        map.put("product", new Product("chair", new BigDecimal("12.50"), Arrays.asList("wood")));
+        map.put("json", new JSONObject("{\"k\":[true]}"));
+        map.put("self", map);
+        String json = jsonTool.stringify(map).toString();
+        assertEquals("{\"s\":\"quote\\\" backslash\\\\ newline\\n tab\\t ctrl\\u0001 </script> \\u2028\"," +
+            "\"i\":42,\"d\":1.5,\"nan\":null,\"b\":false,\"n\":null,\"a\":[1,2],\"l\":[\"x\",null,\"c\"]," +
+            "\"date\":\"1970-01-01T00:00:00.000Z\"," +
+            "\"product\":{\"available\":true,\"name\":\"chair\",\"price\":12.50,\"tags\":[\"wood\"]}," +
+            "\"json\":{\"k\":[true]},\"self\":null}", json);
+        JSONObject parsed = new JSONObject(json);
+        assertEquals(map.get("s"), parsed.get("s"));
+
+        String htmlSafe = jsonTool.stringify("</script><b>'&'", true).toString();
+        assertEquals("\"\\u003c/script\\u003e\\u003cb\\u003e\\u0027\\u0026\\u0027\"", htmlSafe);
+        assertEquals("</script><b>'&'", new JSONArray("[" + htmlSafe + "]").get(0));
+
+        VelocityEngine engine = new VelocityEngine();
+        VelocityContext context = new VelocityContext();
+        context.put("json", jsonTool);
+        context.put("list", Arrays.asList(1, 2, 3));
+        StringWriter writer = new StringWriter();
+        engine.evaluate(context, writer, "test", "var x = $json.stringify($list);");
+        assertEquals("var x = [1,2,3];", writer.toString());
+    }
 }
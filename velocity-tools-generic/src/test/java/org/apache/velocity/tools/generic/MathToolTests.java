@@ -0,0 +1,138 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for MathTool aggregation methods</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class MathToolTests
+{
+    public static class Row
+    {
+        private final int quantity;
+        private final double amount;
+        private final Row parent;
+
+        public Row(int quantity, double amount, Row parent)
+        {
+            this.quantity = quantity;
+            this.amount = amount;
+            this.parent = parent;
+        }
+
+        public int getQuantity()
+        {
+            return quantity;
+        }
+
+        public double getAmount()
+        {
+            return amount;
+        }
+
+        public Row getParent()
+        {
+            return parent;
+        }
+    }
+
+    private List<Row> rows()
+    {
+        Row parent = new Row(100, 0.5, null);
+        List<Row> rows = new ArrayList<Row>();
+        rows.add(new Row(3, 10.25, parent));
+        rows.add(new Row(-2, 4.5, parent));
+        rows.add(new Row(7, 1.25, parent));
+        rows.add(null);
+        return rows;
+    }
+
+    public @Test void testTotal() throws Exception
+    {
+        MathTool math = new MathTool();
+        List<Row> rows = rows();
+        rows.remove(3);
+        assertEquals(8, math.getTotal(rows, "quantity"));
+        assertEquals(16.0, math.getTotal(rows, "amount"));
+        assertEquals(300, math.getTotal(rows, "parent.quantity"));
+        assertEquals(new Double(16.0 / 3), math.getAverage(rows, "amount"));
+        assertNull(math.getTotal(rows, "missing"));
+
+        List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>();
+        for (int i = 1; i <= 4; ++i)
+        {
+            Map<String,Object> map = new HashMap<String,Object>();
+            map.put("value", i);
+            maps.add(map);
+        }
+        assertEquals(10, math.getTotal(maps, "value"));
+    }
+
+    public @Test void testStats() throws Exception
+    {
+        MathTool math = new MathTool();
+        MathTool.Statistics stats = math.stats(rows(), "quantity");
+        assertEquals(3, stats.getCount());
+        assertEquals(8, stats.getTotal());
+        assertEquals(-2, stats.getMin());
+        assertEquals(7, stats.getMax());
+        assertEquals(new Double(8.0 / 3), stats.getAverage());
+
+        stats = math.stats(rows(), "amount");
+        assertEquals(new Double(16.0), stats.getTotal());
+        assertEquals(new Double(1.25), stats.getMin());
+        assertEquals(new Double(10.25), stats.getMax());
+
+        stats = math.stats(rows().toArray(), "parent.amount");
+        assertEquals(new Double(1.5), stats.getTotal());
+        assertEquals(new Double(0.5), stats.getAverage());
+
+        stats = math.stats(Arrays.asList(1, null, "2", 3L));
+        assertEquals(3, stats.getCount());
+        assertEquals(6, stats.getTotal());
+        assertEquals(2, stats.getAverage());
+
+        stats = math.stats(Arrays.asList(Long.MAX_VALUE, 1L));
+        assertEquals(new Double(Long.MAX_VALUE + 1.0), stats.getTotal().doubleValue(), 0.0);
+
+        stats = math.stats(new ArrayList<Row>(), "amount");
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getTotal());
+        assertNull(stats.getAverage());
+        assertNull(stats.getMin());
+
+        assertNull(math.stats(rows(), "missing"));
+        assertNull(math.stats(Arrays.asList(1, "foo")));
+    }
+}
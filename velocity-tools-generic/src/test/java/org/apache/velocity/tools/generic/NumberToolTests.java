@@ -0,0 +1,166 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.velocity.tools.ConversionUtils;
+import org.junit.Test;
+
+/**
+ * <p>Tests for NumberTool</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class NumberToolTests
+{
+    public @Test void testFormat() throws Exception
+    {
+        NumberTool number = new NumberTool();
+        assertEquals("1,234.50", number.format("#,##0.00", 1234.5, Locale.US));
+        assertEquals(new DecimalFormat("#,##0.00", new DecimalFormatSymbols(Locale.FRANCE)).format(1234.5), number.format("#,##0.00", 1234.5, Locale.FRANCE));
+        assertEquals(NumberFormat.getCurrencyInstance(Locale.US).format(3.5), number.format("currency", 3.5, Locale.US));
+        assertEquals("42%", number.format("percent", 0.42, Locale.US));
+        assertEquals(1234, number.toNumber("#,##0", "1,234", Locale.US).intValue());
+    }
+
+    public @Test void testCustomNumberFormat() throws Exception
+    {
+        /* subclasses overriding the NumberFormat creation method are honoured */
+        NumberTool number = new NumberTool()
+        {
+            public NumberFormat getNumberFormat(String format, Locale locale)
+            {
+                return new DecimalFormat("0.0 'custom'", new DecimalFormatSymbols(locale));
+            }
+        };
+        assertEquals("1234.5 custom", number.format("#,##0.00", 1234.5, Locale.US));
+    }
+
+    public @Test void testCachedNumberFormat() throws Exception
+    {
+        NumberFormat nf = ConversionUtils.getCachedNumberFormat("#,##0.00", Locale.US);
+        assertSame(nf, ConversionUtils.getCachedNumberFormat("#,##0.00", Locale.US));
+        assertNotSame(nf, ConversionUtils.getCachedNumberFormat("#,##0.00", Locale.FRANCE));
+        assertSame(ConversionUtils.getCachedNumberFormat("number", Locale.US), ConversionUtils.getCachedNumberFormat("default", Locale.US));
+
+        /* non-cached instances belong to the caller */
+        assertNotSame(ConversionUtils.getNumberFormat("#,##0.00", Locale.US), ConversionUtils.getNumberFormat("#,##0.00", Locale.US));
+    }
+
+    public @Test void testFormat_Concurrent() throws Exception
+    {
+        final NumberTool number = new NumberTool();
+        final String[] patterns = { "#,##0.00", "0.###E0", "00000", "#,##0.0#;(#,##0.0#)" };
+        final double[] values = { 1234567.891, -0.000123, 42, -98765.4321, 3.14159 };
+        final String[][] expected = new String[patterns.length][values.length];
+        for (int p = 0; p < patterns.length; ++p)
+        {
+            DecimalFormat reference = new DecimalFormat(patterns[p], new DecimalFormatSymbols(Locale.US));
+            for (int v = 0; v < values.length; ++v)
+            {
+                expected[p][v] = reference.format(values[v]);
+            }
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t)
+        {
+            final int offset = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < 5000; ++i)
+                    {
+                        int p = (i + offset) % patterns.length;
+                        int v = (i / patterns.length + offset) % values.length;
+                        if (!expected[p][v].equals(number.format(patterns[p], values[v], Locale.US)))
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+    }
+
+    public @Test void testToNumber_PlainLiterals() throws Exception
+    {
+        String[] literals = { "0", "-0", "42", "-42", "007", "3.5", "-3.5", "3.0", "-0.0", "10.000", "0.1", "-0.0001",
+            "9223372036854775807", "9223372036854775808", "-9223372036854775808", "-9223372036854775809",
+            "123456789012345678901234567890", "1.7976931348623157", "4.9E-324", "1e3", "+5", " 5", "5 ", "5.",
+            ".5", "-", "", "-.5", "1,234", "1,234.5", "12abc", "1.2.3", "NaN", "\u221e" };
+        List<String> inputs = new ArrayList<String>(Arrays.asList(literals));
+        Random random = new Random(42);
+        String alphabet = "0000123456789-.";
+        for (int i = 0; i < 2000; ++i)
+        {
+            char[] chars = new char[1 + random.nextInt(24)];
+            for (int c = 0; c < chars.length; ++c)
+            {
+                chars[c] = alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            inputs.add(new String(chars));
+        }
+        Locale[] locales = { Locale.US, Locale.FRANCE, Locale.GERMANY, new Locale("ar", "EG"), Locale.US };
+        for (Locale locale : locales)
+        {
+            for (String literal : inputs)
+            {
+                Number expected;
+                try
+                {
+                    expected = NumberFormat.getNumberInstance(locale).parse(literal);
+                }
+                catch (ParseException pe)
+                {
+                    expected = null;
+                }
+                Number actual = ConversionUtils.toNumber(literal, "default", locale);
+                assertEquals("parsing '" + literal + "' for " + locale, expected, actual);
+                if (expected != null)
+                {
+                    assertEquals("parsing '" + literal + "' for " + locale, expected.getClass(), actual.getClass());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link RenderTool}</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class RenderToolTests
+{
+    private RenderTool renderTool(VelocityEngine engine, Context context, int cacheSize)
+    {
+        RenderTool renderTool = new RenderTool();
+        renderTool.setVelocityEngine(engine);
+        renderTool.setVelocityContext(context);
+        renderTool.setCacheSize(cacheSize);
+        return renderTool;
+    }
+
+    public @Test void testEval() throws Exception
+    {
+        VelocityEngine engine = new VelocityEngine();
+        engine.init();
+        for (int cacheSize : new int[] { 0, 2 })
+        {
+            VelocityContext context = new VelocityContext();
+            context.put("list", new int[] { 1, 2, 3 });
+            RenderTool render = renderTool(engine, context, cacheSize);
+            for (int i = 0; i < 3; ++i)
+            {
+                context.put("name", "world " + i);
+                assertEquals("hello world " + i + "!", render.eval("hello ${name}!"));
+                assertEquals("3", render.eval("$list.size()"));
+                assertEquals("6", render.eval("#set($sum = 0)#foreach($i in $list)#set($sum = $sum + $i)#end$sum"));
+                assertEquals("hi there", render.eval("#macro(hi $who)hi $who#end#hi('there')"));
+            }
+            context.put("foo", "#set($bar = 'bar')$bar");
+            context.put("baz", "$foo");
+            assertEquals("bar", render.recurse("$baz"));
+
+            StringWriter writer = new StringWriter();
+            assertTrue(render.eval(context, "hello ${name}!", writer));
+            assertEquals("hello world 2!", writer.toString());
+
+            /* parse errors are caught by default */
+            assertNull(render.eval("#if($name"));
+            assertFalse(render.eval(context, "#if($name", new StringWriter()));
+        }
+    }
+
+    public @Test void testTemplateCache() throws Exception
+    {
+        VelocityEngine engine = new VelocityEngine();
+        engine.init();
+        RenderTool render = renderTool(engine, new VelocityContext(), 2);
+        Template first = render.getTemplate("a$x");
+        assertSame(first, render.getTemplate("a$x"));
+        render.getTemplate("b$x");
+        render.getTemplate("c$x");
+        /* least recently used entries are evicted */
+        assertNotSame(first, render.getTemplate("a$x"));
+
+        /* the cache is shared among tools using the same engine */
+        RenderTool other = renderTool(engine, new VelocityContext(), 2);
+        assertSame(render.getTemplate("a$x"), other.getTemplate("a$x"));
+        VelocityEngine otherEngine = new VelocityEngine();
+        otherEngine.init();
+        assertNotSame(render.getTemplate("a$x"), renderTool(otherEngine, new VelocityContext(), 2).getTemplate("a$x"));
+
+        assertNull(renderTool(engine, new VelocityContext(), 0).getTemplate("a$x"));
+
+        /* intermediate results of recursive evaluations are not cached */
+        VelocityContext context = new VelocityContext();
+        context.put("foo", "$bar");
+        context.put("bar", "baz");
+        render = renderTool(engine, context, 2);
+        Template unrelated = render.getTemplate("other");
+        Template recursed = render.getTemplate("$foo");
+        assertEquals("baz", render.recurse("$foo"));
+        /* caching "$bar" and "baz" would have evicted both entries */
+        assertSame(unrelated, render.getTemplate("other"));
+        assertSame(recursed, render.getTemplate("$foo"));
+    }
+
+    public @Test void testWithoutRuntimeServices() throws Exception
+    {
+        VelocityEngine engine = new VelocityEngine();
+        engine.init();
+        VelocityContext context = new VelocityContext();
+        context.put("name", "world");
+        /* when the runtime services cannot be found, VTL is evaluated without caching */
+        RenderTool render = new RenderTool()
+        {
+            protected RuntimeServices getRuntimeServices()
+            {
+                return null;
+            }
+        };
+        render.setVelocityEngine(engine);
+        render.setVelocityContext(context);
+        assertNull(render.getTemplate("hello $name!"));
+        assertEquals("hello world!", render.eval("hello $name!"));
+        StringWriter writer = new StringWriter();
+        assertTrue(render.eval(context, "hello $name!", writer));
+        assertEquals("hello world!", writer.toString());
+    }
+
+    public @Test void testStream() throws Exception
+    {
+        VelocityEngine engine = new VelocityEngine();
+        engine.init();
+        VelocityContext context = new VelocityContext();
+        context.put("name", "world");
+        context.put("render", renderTool(engine, context, 10));
+        StringWriter writer = new StringWriter();
+        engine.evaluate(context, writer, "test", "#set($vtl = 'hello $name!')[$render.stream($vtl)]");
+        assertEquals("[hello world!]", writer.toString());
+    }
+}
@@ -0,0 +1,154 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListResourceBundle;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.velocity.tools.ConversionUtils;
+import org.apache.velocity.tools.ToolContext;
+import org.junit.Test;
+
+/**
+ * <p>Tests for ResourceTool</p>
+ *
+ * @since VelocityTools 3.0
+ * @version $Id$
+ */
+public class ResourceToolTests
+{
+    private ResourceTool resourceTool(String locale)
+    {
+        ResourceTool tool = new ResourceTool();
+        Map<String,Object> config = new HashMap<String,Object>();
+        config.put(ToolContext.LOCALE_KEY, locale);
+        tool.configure(config);
+        return tool;
+    }
+
+    public @Test void testRender() throws Exception
+    {
+        ResourceTool tool = resourceTool("en");
+        assertEquals("It's ok", tool.render("It''s {0}", new Object[] { "ok" }));
+        assertEquals("{0} and {1}", tool.render("{0} and {1}", null));
+        assertEquals("Hello World!", tool.get("hello.whoever").insert(tool.get("world")).toString());
+        assertEquals("Bonjour Monde!", resourceTool("fr").get("hello.whoever").insert(resourceTool("fr").get("world")).toString());
+        assertSame(tool.getBundle("resources", Locale.ENGLISH), tool.getBundle("resources", "en"));
+        assertSame(ConversionUtils.getCachedMessageFormat("Hello {0}!", Locale.US), ConversionUtils.getCachedMessageFormat("Hello {0}!", Locale.US));
+    }
+
+    public @Test void testRender_Concurrent() throws Exception
+    {
+        final ResourceTool tool = resourceTool("en");
+        final String[] patterns = { "{0} + {1} = {2}", "Hello {0}!", "'{0}' is {0}", "{1}{0}" };
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t)
+        {
+            final int offset = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < 2000; ++i)
+                    {
+                        String pattern = patterns[(i + offset) % patterns.length];
+                        Object[] args = { "a" + i, "b" + offset, "c" };
+                        if (!MessageFormat.format(pattern, args).equals(tool.render(pattern, args)))
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+    }
+
+    public @Test void testFlatBundle() throws Exception
+    {
+        ResourceTool tool = resourceTool("fr");
+        assertEquals(Arrays.asList("foo", "hello.whoever", "world"), tool.getKeys());
+        assertEquals(Arrays.asList("whoever"), tool.get("hello").getKeys());
+        assertEquals(Arrays.asList("lo.whoever"), tool.getKeys("hel", "resources", null));
+        assertEquals(0, tool.get("missing").getKeys().size());
+        assertEquals("barre", tool.get("foo").getRaw());
+        assertNull(tool.get("hello").getRaw());
+        assertSame(tool.getFlatBundle("resources", "fr"), tool.getFlatBundle("resources", Locale.FRENCH));
+
+        ResourceBundle bundle = new ListResourceBundle()
+        {
+            protected Object[][] getContents()
+            {
+                return new Object[][] { { "menu.home", "Home" }, { "menu.about", "About" }, { "menu", "Menu" }, { "number", 42 } };
+            }
+        };
+        ResourceTool.FlatBundle flat = new ResourceTool.FlatBundle(bundle);
+        assertEquals(Arrays.asList("about", "home"), flat.getKeys("menu"));
+        assertSame(flat.getKeys("menu"), flat.getKeys("menu"));
+        assertEquals(42, flat.get("number"));
+        assertNull(flat.get("menu.missing"));
+
+        /* keys not enumerated by the bundle are looked up in the bundle itself */
+        ResourceBundle dynamic = new ResourceBundle()
+        {
+            protected Object handleGetObject(String key)
+            {
+                return key.startsWith("dyn.") ? key.substring(4) : null;
+            }
+
+            public Enumeration<String> getKeys()
+            {
+                return Collections.enumeration(Arrays.asList("dyn.listed"));
+            }
+        };
+        flat = new ResourceTool.FlatBundle(dynamic);
+        assertEquals(Arrays.asList("dyn.listed"), flat.getKeys(null));
+        assertEquals("listed", flat.get("dyn.listed"));
+        assertEquals("other", flat.get("dyn.other"));
+        assertNull(flat.get("other"));
+
+        /* the returned keys list belongs to the caller */
+        List<String> keys = tool.getKeys();
+        keys.add("extra");
+        assertEquals(Arrays.asList("foo", "hello.whoever", "world"), tool.getKeys());
+        keys = tool.getKeys("hel", "resources", null);
+        keys.add("extra");
+        assertEquals(Arrays.asList("lo.whoever"), tool.getKeys("hel", "resources", null));
+    }
+}
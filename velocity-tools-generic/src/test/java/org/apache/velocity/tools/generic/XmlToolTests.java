@@ -27,10 +27,21 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.tools.XmlUtils;
 import org.junit.Test;
 import org.w3c.dom.Node;
 
@@ -313,6 +324,249 @@ public class XmlToolTests {
         assertEquals("<baz>woogie</baz><baz>wiggie</baz>", baz.toString());
     }
 
+    public @Test void methodFind_Concurrent() throws Exception
+    {
+        final String[] expressions = { "//baz", "/foo/bar/@name", "//baz[2]" };
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t)
+        {
+            /* DOM implementations are not thread-safe, even for reading,
+             * so each thread gets its own document */
+            final XmlTool xml = stringBased();
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < 200; ++i)
+                    {
+                        XmlTool baz = xml.find(expressions[0]);
+                        XmlTool name = xml.find(expressions[1]);
+                        XmlTool last = xml.find(expressions[2]);
+                        if (baz == null || baz.size() != 2 || !"a".equals(name.toString()) ||
+                            !"wiggie".equals(last.getText()))
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+    }
+
+    public @Test void methodGet_SimpleSteps() throws Exception
+    {
+        XmlTool xml = new XmlTool();
+        xml.parse("<catalog><item id=\"1\"><price>10</price><sku-ref a.b=\"x\">A</sku-ref></item>" +
+            "<item id=\"2\"><price>20</price><price>21</price></item>" +
+            "<ns xmlns=\"urn:test\"><item>namespaced</item></ns><other xmlns:p=\"urn:p\" p:id=\"p\"/></catalog>");
+        String[] steps = { "item", "item[1]", "item[2]", "item[3]", "item[0]", "@id", "price", "price[2]",
+            "sku-ref", "@a.b", "missing", "@missing", "ns", "other", "@p:id" };
+        List<XmlTool> contexts = new ArrayList<XmlTool>();
+        contexts.add(xml);
+        Iterator<XmlTool> items = xml.find("item").iterator();
+        while (items.hasNext())
+        {
+            contexts.add(items.next());
+        }
+        contexts.add(xml.find("//*[local-name()='ns']"));
+        contexts.add(xml.find("//other"));
+        contexts.add(xml.find("//@id").getFirst());
+        for (XmlTool context : contexts)
+        {
+            for (String step : steps)
+            {
+                Object direct = context.get(step);
+                XmlTool searched = "@p:id".equals(step) ? null : context.find(context.getPath() + "/" + step);
+                if (direct instanceof String)
+                {
+                    /* attribute shortcut */
+                    assertEquals(context.attr(step), direct);
+                    continue;
+                }
+                String message = "step '" + step + "' from " + context.getPath();
+                assertEquals(message, String.valueOf(searched), String.valueOf(direct));
+            }
+        }
+        assertEquals("21", ((XmlTool)((XmlTool)xml.get("item[2]")).get("price[2]")).getText());
+        assertEquals("1", xml.find("item").get(0).get("@id").toString());
+    }
+
+    public @Test void methodParse_Concurrent() throws Exception
+    {
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[32];
+        for (int t = 0; t < threads.length; ++t)
+        {
+            final int n = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < 100; ++i)
+                    {
+                        XmlTool xml = new XmlTool();
+                        xml.parse("<doc thread=\"" + n + "\"><item>" + i + "</item></doc>");
+                        if (xml.isEmpty() || !String.valueOf(n).equals(xml.attr("thread")) ||
+                            !String.valueOf(i).equals(xml.find("item").getText()))
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        assertEquals(0, XmlUtils.getActiveBuildersCount());
+        assertEquals(0, XmlUtils.getBuilderTimeoutsCount());
+        assertTrue(XmlUtils.getIdleBuildersCount() <= threads.length + 1);
+    }
+
+    public @Test void methodStream() throws Exception
+    {
+        File file = File.createTempFile("velocity-tools-stream", ".xml");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write("<?xml version=\"1.0\"?>\n<catalog xmlns:p=\"urn:p\"><header><item>not a record</item></header>");
+        for (int i = 0; i < 1000; ++i)
+        {
+            writer.write("<item id=\"" + i + "\" p:code=\"c" + i + "\"><name>Item <![CDATA[#" + i + "]]></name><price>" + i + ".5</price></item>");
+        }
+        writer.write("</catalog>");
+        writer.close();
+        String url = file.toURI().toURL().toString();
+
+        XmlTool xml = new XmlTool();
+        xml.configure(new ValueParser());
+        Iterator<XmlTool> records = xml.stream(url, "/catalog/item");
+        int count = 0;
+        while (records.hasNext())
+        {
+            XmlTool item = records.next();
+            assertEquals(String.valueOf(count), item.attr("id"));
+            assertEquals("Item #" + count, ((XmlTool)item.get("name")).getText());
+            assertEquals(count + ".5", ((XmlTool)item.get("price")).getText());
+            assertNull(item.getParent());
+            ++count;
+        }
+        assertEquals(1000, count);
+
+        records = xml.stream(url, "//item");
+        assertEquals("not a record", records.next().getText());
+        assertEquals("0", records.next().attr("id"));
+        ((XmlTool.StreamIterator)records).close();
+        assertFalse(records.hasNext());
+
+        records = xml.stream(url, "/*/*/price");
+        assertEquals("0.5", records.next().getText());
+        ((XmlTool.StreamIterator)records).close();
+
+        VelocityEngine engine = new VelocityEngine();
+        VelocityContext context = new VelocityContext();
+        context.put("xml", xml);
+        context.put("url", url);
+        StringWriter out = new StringWriter();
+        engine.evaluate(context, out, "test", "#foreach($item in $xml.stream($url, '/catalog/item'))#if($foreach.index < 2)$item.price.text;#end#end");
+        assertEquals("0.5;1.5;", out.toString());
+        file.delete();
+    }
+
+    private static void writeFile(File file, String content) throws Exception
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(content);
+        writer.close();
+    }
+
+    public @Test void methodRead_Cached() throws Exception
+    {
+        File file = File.createTempFile("velocity-tools-cached", ".xml");
+        file.deleteOnExit();
+        writeFile(file, "<menu><entry>one</entry></menu>");
+        long lastModified = file.lastModified();
+
+        XmlTool first = new XmlTool();
+        first.configure(new ValueParser());
+        first.read(file.getAbsolutePath());
+        assertEquals("one", first.find("entry").getText());
+
+        /* same modification date: the cached document is used */
+        writeFile(file, "<menu><entry>two</entry></menu>");
+        file.setLastModified(lastModified);
+        XmlTool second = new XmlTool();
+        second.configure(new ValueParser());
+        second.read(file.getAbsolutePath());
+        assertEquals("one", second.find("entry").getText());
+
+        /* each tool gets its own copy */
+        assertTrue(first.node().getOwnerDocument() != second.node().getOwnerDocument());
+        first.find("entry").node().setTextContent("modified");
+        assertEquals("one", second.find("entry").getText());
+        assertEquals("menu", second.getNodeName());
+        assertEquals(1, second.children().size());
+
+        /* modified file: the document is reparsed */
+        file.setLastModified(lastModified + 2000);
+        XmlTool third = new XmlTool();
+        third.configure(new ValueParser());
+        third.read(file.getAbsolutePath());
+        assertEquals("two", third.find("entry").getText());
+
+        /* disabled cache */
+        Map<String,String> params = new HashMap<String,String>();
+        params.put(XmlTool.DOCUMENT_CACHE_SIZE_KEY, "0");
+        writeFile(file, "<menu><entry>three</entry></menu>");
+        file.setLastModified(lastModified + 2000);
+        XmlTool fourth = new XmlTool();
+        fourth.configure(params);
+        fourth.read(file.getAbsolutePath());
+        assertEquals("three", fourth.find("entry").getText());
+        file.delete();
+    }
 
+    public @Test void methodCursor() throws Exception
+    {
+        XmlTool xml = new XmlTool();
+        assertNull(xml.cursor());
+        xml.parse(XML_STRING);
+        xml = xml.children();
+        Iterator<XmlTool> i = xml.cursor();
+        XmlTool first = i.next();
+        assertEquals("a", first.attr("name"));
+        XmlTool second = i.next();
+        assertSame(first, second);
+        assertEquals("baz", second.getName());
+        assertEquals("wiggie", i.next().getText());
+        assertFalse(i.hasNext());
+        /* iterator() still returns distinct instances */
+        i = xml.iterator();
+        assertTrue(i.next() != i.next());
+    }
+
+    public @Test void methodParents_Identity() throws Exception
+    {
+        XmlTool xml = new XmlTool();
+        xml.parse("<root><a><x/><x/><x/></a><b><x/><x/></b></root>");
+        XmlTool found = xml.find("//x");
+        assertEquals(5, found.size());
+        XmlTool parents = found.parents();
+        assertEquals(2, parents.size());
+        assertEquals("a", parents.get(0).getNodeName());
+        assertEquals("b", parents.get(1).getNodeName());
+        assertEquals(1, parents.parents().size());
+    }
 }
-        
\ No newline at end of file
@@ -19,16 +19,25 @@ package org.apache.velocity.tools.view;
  * under the License.
  */
 
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.velocity.tools.BoundedCache;
 import org.apache.velocity.tools.Scope;
 import org.apache.velocity.tools.config.DefaultKey;
 import org.apache.velocity.tools.config.InvalidScope;
+import org.apache.velocity.tools.generic.ValueParser;
 
 /**
  * <p>Abstract view tool for doing "searching" and robust
@@ -117,6 +126,29 @@ import org.apache.velocity.tools.config.InvalidScope;
  * &lt;/tools&gt;
  * </pre>
  * </p>
+ * <p>
+ * <b>Paged queries:</b><br>
+ * For large result sets, keeping the whole result list in the session
+ * is wasteful. A subclass may then also implement the {@link PagedQuery}
+ * interface: the tool will only ask it for the total count of results
+ * and for the windows of results actually displayed. A few of those
+ * windows (see {@link #setPageCacheSize(int)}) and the count are kept
+ * in the session, so that its memory use no longer grows with the
+ * size of the result set.
+ * </p>
+ * <p>
+ * <b>Shared results:</b><br>
+ * When the <code>sharedCacheSize</code> configuration property is positive,
+ * full result lists are cached at the application level, keyed by the
+ * normalized criteria (see {@link #normalizeCriteria(Object)}), for
+ * <code>sharedCacheTTL</code> seconds (default is 300), and shared between
+ * all sessions. The session then only holds the criteria of its last search.
+ * The application can invalidate the cache when the underlying data
+ * changes using {@link #getSharedResults(ServletContext, Class)}:
+ * <pre>
+ * AbstractSearchTool.getSharedResults(servletContext, MySearchTool.class).invalidate();
+ * </pre>
+ * </p>
  *
  * @author Nathan Bubna
  * @since VelocityTools 2.0
@@ -132,8 +164,78 @@ public abstract class AbstractSearchTool extends PagerTool
     protected static final String STORED_RESULTS_KEY =
         StoredResults.class.getName();
 
+    /** the key under which StoredPages are kept in session */
+    protected static final String STORED_PAGES_KEY =
+        StoredPages.class.getName();
+
+    /** the default number of result windows kept in session for paged queries */
+    public static final int DEFAULT_PAGE_CACHE_SIZE = 3;
+
+    /** the configuration key for the size of the application-level results cache */
+    public static final String SHARED_CACHE_SIZE_KEY = "sharedCacheSize";
+
+    /** the configuration key for the time to live (in seconds) of shared results */
+    public static final String SHARED_CACHE_TTL_KEY = "sharedCacheTTL";
+
+    /** the default time to live (in seconds) of shared results */
+    public static final int DEFAULT_SHARED_CACHE_TTL = 300;
+
+    /** the prefix of the keys under which SharedResults are kept in application */
+    protected static final String SHARED_RESULTS_KEY =
+        SharedResults.class.getName();
+
     private String criteriaKey = DEFAULT_CRITERIA_KEY;
     private Object criteria;
+    private int pageCacheSize = DEFAULT_PAGE_CACHE_SIZE;
+    private PagedItems pagedItems;
+    private SharedResults sharedResults;
+
+    /**
+     * Looks for the application-level results cache configuration.
+     *
+     * @param values configuration values
+     */
+    protected void configure(ValueParser values)
+    {
+        super.configure(values);
+        int size = values.getInt(SHARED_CACHE_SIZE_KEY, 0);
+        if (size > 0)
+        {
+            ServletContext app = (ServletContext)values.get(ViewContext.SERVLET_CONTEXT_KEY);
+            if (app == null)
+            {
+                getLog().warn("no servlet context available, shared results cache disabled");
+            }
+            else
+            {
+                long ttl = 1000l * values.getInt(SHARED_CACHE_TTL_KEY, DEFAULT_SHARED_CACHE_TTL);
+                String key = SHARED_RESULTS_KEY + '.' + getClass().getName();
+                synchronized (app)
+                {
+                    sharedResults = (SharedResults)app.getAttribute(key);
+                    if (sharedResults == null)
+                    {
+                        sharedResults = new SharedResults(size, ttl);
+                        app.setAttribute(key, sharedResults);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the application-level results cache of the specified
+     * search tool class, to allow the application to invalidate it.
+     *
+     * @param app the servlet context
+     * @param toolClass the search tool class
+     * @return the {@link SharedResults} of this class, or <code>null</code>
+     *         if none has been configured yet
+     */
+    public static SharedResults getSharedResults(ServletContext app, Class toolClass)
+    {
+        return (SharedResults)app.getAttribute(SHARED_RESULTS_KEY + '.' + toolClass.getName());
+    }
 
     /**
      * Sets the criteria *if* it is set in the request parameters.
@@ -162,6 +264,24 @@ public abstract class AbstractSearchTool extends PagerTool
         return this.criteriaKey;
     }
 
+    /**
+     * Sets the number of result windows kept in the user's session
+     * when this tool implements {@link PagedQuery}. A value of zero
+     * disables session storage of windows and count.
+     *
+     * @param pageCacheSize the number of result windows to keep
+     */
+    public void setPageCacheSize(int pageCacheSize)
+    {
+        /* quietly override to a reasonable value */
+        this.pageCacheSize = Math.max(0, pageCacheSize);
+    }
+
+    public int getPageCacheSize()
+    {
+        return this.pageCacheSize;
+    }
+
 
     /**
      * Sets the criteria and results to null, page index to zero, and
@@ -182,6 +302,7 @@ public abstract class AbstractSearchTool extends PagerTool
     public void setCriteria(Object criteria)
     {
         this.criteria = criteria;
+        this.pagedItems = null;
     }
 
 
@@ -204,6 +325,9 @@ public abstract class AbstractSearchTool extends PagerTool
      * Gets the results for the given criteria either in memory
      * or by performing a new query for them.  If the criteria
      * is null, an empty list will be returned.
+     * If this tool implements {@link PagedQuery}, the returned list
+     * is a view which only fetches the windows of results that are
+     * accessed.
      *
      * @return {@link List} of all items for the criteria
      */
@@ -216,6 +340,16 @@ public abstract class AbstractSearchTool extends PagerTool
             return Collections.EMPTY_LIST;
         }
 
+        /* paged queries never hold the full result list */
+        if (this instanceof PagedQuery)
+        {
+            if (pagedItems == null)
+            {
+                pagedItems = new PagedItems(findMe, getStoredPages(findMe));
+            }
+            return pagedItems;
+        }
+
         /* get the current list (should never return null!) */
         List list = super.getItems();
         assert (list != null);
@@ -251,6 +385,11 @@ public abstract class AbstractSearchTool extends PagerTool
 
     protected List getStoredItems()
     {
+        if (sharedResults != null)
+        {
+            return sharedResults.get(normalizeCriteria(getCriteria()));
+        }
+
         StoredResults sr = getStoredResults();
 
         /* if the criteria equals that of the stored results,
@@ -265,7 +404,81 @@ public abstract class AbstractSearchTool extends PagerTool
 
     protected void setStoredItems(List items)
     {
-        setStoredResults(new StoredResults(getCriteria(), items));
+        Object findMe = getCriteria();
+        if (sharedResults != null && findMe != null)
+        {
+            /* the session only keeps a handle to the shared list */
+            sharedResults.put(normalizeCriteria(findMe), items);
+            setStoredResults(new StoredResults(findMe, null));
+        }
+        else
+        {
+            setStoredResults(new StoredResults(findMe, items));
+        }
+    }
+
+
+    /**
+     * Returns the key under which the results for the specified criteria
+     * are shared at the application level. The default implementation
+     * trims strings and collapses their inner whitespaces, and converts
+     * arrays and collections to lists of normalized values. Override it
+     * if your criteria need another notion of equivalence.
+     *
+     * @param findMe search criteria
+     * @return normalized criteria
+     */
+    protected Object normalizeCriteria(Object findMe)
+    {
+        return SharedResults.normalize(findMe);
+    }
+
+
+    /**
+     * Returns the result windows cache for the given criteria, either
+     * from the user's session or newly created (and then stored
+     * in the session if the page cache size is positive).
+     *
+     * @param findMe the search criteria
+     * @return the {@link StoredPages} for the criteria
+     */
+    protected StoredPages getStoredPages(Object findMe)
+    {
+        int windowSize = getItemsPerPage();
+        StoredPages sp = null;
+        if (session != null && pageCacheSize > 0)
+        {
+            sp = (StoredPages)session.getAttribute(STORED_PAGES_KEY);
+        }
+        if (sp == null || !findMe.equals(sp.getCriteria()))
+        {
+            sp = new StoredPages(findMe, windowSize, Math.max(1, pageCacheSize));
+            setStoredPages(sp);
+        }
+        else if (sp.getWindowSize() != windowSize)
+        {
+            /* page size changed, the count is still valid */
+            StoredPages resized = new StoredPages(findMe, windowSize, Math.max(1, pageCacheSize));
+            resized.setCount(sp.getCount());
+            sp = resized;
+            setStoredPages(sp);
+        }
+        return sp;
+    }
+
+
+    /**
+     * Stores the result windows cache in the user's session attributes
+     * (if one currently exists and the page cache size is positive).
+     *
+     * @param pages the {@link StoredPages} to be stored
+     */
+    protected void setStoredPages(StoredPages pages)
+    {
+        if (session != null && pageCacheSize > 0)
+        {
+            session.setAttribute(STORED_PAGES_KEY, pages);
+        }
     }
 
 
@@ -321,8 +534,201 @@ public abstract class AbstractSearchTool extends PagerTool
     }
 
 
+    /*  ---------------------- paging SPI -----------------------------  */
+
+    /**
+     * Interface to be implemented by search tools able to fetch only
+     * a window of their results. When a subclass implements it, the
+     * {@link AbstractSearchTool#executeQuery(Object)} method is not
+     * called anymore and may simply return {@code null}.
+     */
+    public interface PagedQuery
+    {
+        /**
+         * Counts the results for the specified criteria.
+         *
+         * @param criteria the search criteria
+         * @return the total number of results
+         */
+        int executeCount(Object criteria);
+
+        /**
+         * Executes a query for a window of results.
+         *
+         * @param criteria the search criteria
+         * @param offset index of the first result to return
+         * @param limit maximum number of results to return
+         * @return a {@link List} of at most <code>limit</code> results
+         */
+        List executeQuery(Object criteria, int offset, int limit);
+    }
+
+
+    /**
+     * Request-scoped view over the results of a {@link PagedQuery},
+     * which only fetches the windows of results actually accessed.
+     */
+    protected class PagedItems extends AbstractList
+    {
+        private final Object crit;
+        private final StoredPages pages;
+
+        protected PagedItems(Object crit, StoredPages pages)
+        {
+            this.crit = crit;
+            this.pages = pages;
+        }
+
+        public int size()
+        {
+            Integer count = pages.getCount();
+            if (count == null)
+            {
+                int total = 0;
+                /* safely perform a new count */
+                try
+                {
+                    total = Math.max(0, ((PagedQuery)AbstractSearchTool.this).executeCount(crit));
+                }
+                catch (Throwable t)
+                {
+                    getLog().error("executeCount({}) failed", crit, t);
+                }
+                count = Integer.valueOf(total);
+                pages.setCount(count);
+            }
+            return count.intValue();
+        }
+
+        public Object get(int i)
+        {
+            if (i < 0 || i >= size())
+            {
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+            }
+            int windowSize = pages.getWindowSize();
+            int offset = i - i % windowSize;
+            List window = pages.getWindow(offset);
+            if (window == null)
+            {
+                /* safely fetch the window */
+                try
+                {
+                    window = ((PagedQuery)AbstractSearchTool.this).executeQuery(crit, offset, windowSize);
+                }
+                catch (Throwable t)
+                {
+                    getLog().error("executeQuery({}, {}, {}) failed", crit, offset, windowSize, t);
+                }
+                if (window == null)
+                {
+                    window = Collections.EMPTY_LIST;
+                }
+                pages.putWindow(offset, window);
+            }
+            /* the underlying data may have shrunk since the count */
+            return i - offset < window.size() ? window.get(i - offset) : null;
+        }
+    }
+
+
     /*  ---------------------- utility class -----------------------------  */
 
+    /**
+     * Application-level cache of result lists, keyed by normalized criteria
+     * and bounded both in size and time. Cached lists are unmodifiable,
+     * since they are shared between all sessions.
+     */
+    public static class SharedResults
+    {
+        private final BoundedCache<Object,List> cache;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param size maximum number of cached result lists
+         * @param ttl time to live of cached result lists, in milliseconds
+         */
+        public SharedResults(int size, long ttl)
+        {
+            cache = new BoundedCache<Object,List>(size, ttl);
+        }
+
+        /**
+         * @param key normalized criteria
+         * @return the shared results, or <code>null</code> if none
+         */
+        public List get(Object key)
+        {
+            return cache.get(key);
+        }
+
+        /**
+         * @param key normalized criteria
+         * @param list the results to share
+         */
+        public void put(Object key, List list)
+        {
+            cache.put(key, Collections.unmodifiableList(list));
+        }
+
+        /**
+         * Invalidates all the shared results, typically after the
+         * underlying data has changed.
+         */
+        public void invalidate()
+        {
+            cache.clear();
+        }
+
+        /**
+         * Invalidates the shared results for the specified criteria.
+         * Only relevant if the default criteria normalization is used.
+         *
+         * @param criteria search criteria
+         */
+        public void invalidate(Object criteria)
+        {
+            cache.remove(normalize(criteria));
+        }
+
+        /**
+         * Default criteria normalization.
+         *
+         * @param criteria search criteria
+         * @return normalized criteria
+         * @see AbstractSearchTool#normalizeCriteria(Object)
+         */
+        public static Object normalize(Object criteria)
+        {
+            if (criteria instanceof String)
+            {
+                return ((String)criteria).trim().replaceAll("\\s+", " ");
+            }
+            else if (criteria instanceof Collection)
+            {
+                List list = new ArrayList(((Collection)criteria).size());
+                for (Object value : (Collection)criteria)
+                {
+                    list.add(normalize(value));
+                }
+                return list;
+            }
+            else if (criteria != null && criteria.getClass().isArray())
+            {
+                int length = Array.getLength(criteria);
+                List list = new ArrayList(length);
+                for (int i = 0; i < length; ++i)
+                {
+                    list.add(normalize(Array.get(criteria, i)));
+                }
+                return list;
+            }
+            return criteria;
+        }
+    }
+
+
     /**
      * Simple utility class to hold a criterion and its result list.
      * <p>
@@ -372,4 +778,93 @@ public abstract class AbstractSearchTool extends PagerTool
     }
 
 
+    /**
+     * Utility class to hold a criterion, the total count of its results
+     * and a bounded number of windows of those results.
+     * <p>
+     * Like {@link StoredResults}, this class is by default stored
+     * in a user's session and its members are transient.
+     * </p>
+     */
+    public static class StoredPages implements java.io.Serializable
+    {
+        /** serial version id */
+        private static final long serialVersionUID = -2748384915372850717L;
+
+        private final transient Object crit;
+        private final transient int windowSize;
+        private final transient Map<Integer,List> windows;
+        private transient Integer count;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param crit the criteria for these results
+         * @param windowSize the number of results in each window
+         * @param maxWindows the maximum number of windows to keep
+         */
+        public StoredPages(Object crit, int windowSize, final int maxWindows)
+        {
+            this.crit = crit;
+            this.windowSize = windowSize;
+            this.windows = new LinkedHashMap<Integer,List>(maxWindows + 1, 1f, true)
+            {
+                protected boolean removeEldestEntry(Map.Entry<Integer,List> eldest)
+                {
+                    return size() > maxWindows;
+                }
+            };
+        }
+
+        /**
+         * @return the stored criteria object
+         */
+        public Object getCriteria()
+        {
+            return crit;
+        }
+
+        /**
+         * @return the number of results in each window
+         */
+        public int getWindowSize()
+        {
+            return windowSize;
+        }
+
+        /**
+         * @return the stored count of results, or <code>null</code> if unknown
+         */
+        public synchronized Integer getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @param count the count of results
+         */
+        public synchronized void setCount(Integer count)
+        {
+            this.count = count;
+        }
+
+        /**
+         * @param offset the index of the first result of the window
+         * @return the stored window, or <code>null</code> if not available
+         */
+        public synchronized List getWindow(int offset)
+        {
+            return windows.get(offset);
+        }
+
+        /**
+         * @param offset the index of the first result of the window
+         * @param window the {@link List} of results of the window
+         */
+        public synchronized void putWindow(int offset, List window)
+        {
+            windows.put(offset, window);
+        }
+    }
+
 }
@@ -31,6 +31,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.velocity.context.Context;
 import org.apache.velocity.tools.Toolbox;
+import org.apache.velocity.tools.generic.ImportSupport;
 import org.apache.velocity.tools.view.VelocityView;
 import org.apache.velocity.tools.view.ViewToolContext;
 
@@ -183,7 +184,7 @@ public class VelocityViewFilter implements Filter
 
     public void destroy()
     {
-        // do anything else?
+        ImportSupport.shutdownPrefetchExecutor();
         this.view = null;
         this.config = null;
         this.contextKey = null;
@@ -38,6 +38,7 @@ import org.apache.velocity.context.Context;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.tools.generic.ImportSupport;
 import org.apache.commons.lang3.StringEscapeUtils;
 
 /**
@@ -131,6 +132,16 @@ public class VelocityViewServlet extends HttpServlet
         }
     }
 
+    /**
+     * <p>Stops the threads used to prefetch remote URLs.
+     * Called by the servlet container on unloading.</p>
+     */
+    public void destroy()
+    {
+        ImportSupport.shutdownPrefetchExecutor();
+        super.destroy();
+    }
+
 
     /**
      * Looks up an init parameter with the specified key in either the
@@ -0,0 +1,148 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ServletContext;
+
+import org.easymock.Capture;
+import org.junit.Test;
+
+/**
+ * <p>Tests for paged queries of {@link AbstractSearchTool}</p>
+ */
+public class AbstractSearchToolTests
+{
+    public static class PagedSearchTool extends AbstractSearchTool implements AbstractSearchTool.PagedQuery
+    {
+        int counts = 0;
+        int queries = 0;
+
+        protected List executeQuery(Object criteria)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public int executeCount(Object criteria)
+        {
+            ++counts;
+            return 95;
+        }
+
+        public List executeQuery(Object criteria, int offset, int limit)
+        {
+            ++queries;
+            List window = new ArrayList();
+            for (int i = offset; i < Math.min(95, offset + limit); ++i)
+            {
+                window.add(criteria + "-" + i);
+            }
+            return window;
+        }
+    }
+
+    public static class SharedSearchTool extends AbstractSearchTool
+    {
+        static int queries = 0;
+
+        protected List executeQuery(Object criteria)
+        {
+            ++queries;
+            return Arrays.asList(criteria + "-0", criteria + "-1");
+        }
+    }
+
+    public @Test void testSharedResults() throws Exception
+    {
+        ServletContext app = createMock(ServletContext.class);
+        String key = AbstractSearchTool.SHARED_RESULTS_KEY + '.' + SharedSearchTool.class.getName();
+        Capture<Object> shared = new Capture<Object>();
+        expect(app.getAttribute(key)).andReturn(null);
+        app.setAttribute(eq(key), capture(shared));
+        replay(app);
+
+        Map config = new HashMap();
+        config.put(ViewContext.SERVLET_CONTEXT_KEY, app);
+        config.put(AbstractSearchTool.SHARED_CACHE_SIZE_KEY, "10");
+        SharedSearchTool first = new SharedSearchTool();
+        first.configure(config);
+        first.setCriteria("foo  bar");
+        assertEquals("foo  bar-0", first.getPage().get(0));
+        assertEquals(1, SharedSearchTool.queries);
+        verify(app);
+
+        reset(app);
+        expect(app.getAttribute(key)).andReturn(shared.getValue()).anyTimes();
+        replay(app);
+        SharedSearchTool second = new SharedSearchTool();
+        second.configure(config);
+        second.setCriteria(" foo bar ");
+        assertEquals("foo  bar-1", second.getPage().get(1));
+        assertEquals(1, SharedSearchTool.queries);
+
+        AbstractSearchTool.getSharedResults(app, SharedSearchTool.class).invalidate("foo bar");
+        SharedSearchTool third = new SharedSearchTool();
+        third.configure(config);
+        third.setCriteria("foo bar");
+        assertEquals("foo bar-0", third.getPage().get(0));
+        assertEquals(2, SharedSearchTool.queries);
+    }
+
+    public @Test void testPagedQuery() throws Exception
+    {
+        PagedSearchTool search = new PagedSearchTool();
+        assertFalse(search.hasItems());
+        search.setCriteria("foo");
+        search.setItemsPerPage(10);
+        search.setIndex(20);
+        assertTrue(search.hasItems());
+        assertEquals(95, search.getTotal());
+        assertEquals(10, search.getPagesAvailable());
+        List page = search.getPage();
+        assertEquals(10, page.size());
+        assertEquals("foo-20", page.get(0));
+        assertEquals("foo-29", page.get(9));
+        assertEquals(1, search.counts);
+        assertEquals(1, search.queries);
+
+        /* page not aligned on windows */
+        search.setIndex(85);
+        page = search.getPage();
+        assertEquals(10, page.size());
+        assertEquals("foo-85", page.get(0));
+        assertEquals("foo-94", page.get(9));
+        assertEquals(3, search.queries);
+        assertEquals("86 - 95 of 95", search.getPageDescription());
+        assertEquals(1, search.counts);
+
+        /* new criteria */
+        search.setCriteria("bar");
+        search.setIndex(0);
+        assertEquals("bar-0", search.getPage().get(0));
+        assertEquals(2, search.counts);
+    }
+}